@@ -1,18 +1,24 @@
 package com.nextlabs.hb;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,9 +34,12 @@ import com.bluejungle.framework.heartbeat.IHeartbeatManager;
 import com.bluejungle.framework.heartbeat.ServerHeartbeatManagerImpl;
 import com.bluejungle.framework.utils.SerializationUtils;
 import com.bluejungle.pf.domain.destiny.serviceprovider.IHeartbeatServiceProvider;
+import com.nextlabs.hb.helper.BatchInserter;
+import com.nextlabs.hb.helper.DeltaHelper;
 import com.nextlabs.hb.helper.HSQLHelper;
 import com.nextlabs.hb.helper.PluginConstants;
 import com.nextlabs.hb.helper.PropertyLoader;
+import com.nextlabs.hb.helper.RecordReader;
 import com.nextlabs.hb.helper.Utils;
 
 /**
@@ -42,9 +51,11 @@ import com.nextlabs.hb.helper.Utils;
  * from the server, the client checks the validity of the data and inserts them
  * into the relevant tables.
  * 
- * NOTE : The tables are cleared before the new records are inserted. This may
- * take a few seconds (based on amount of data) during which the policy may not
- * work as expected.
+ * Full data is loaded into staging tables first and then copied over the
+ * tables used by the policies in a single transaction. The copy takes time
+ * proportional to the number of rows, but the database runs with MVCC, so
+ * lookups never wait for it and see either all of the old data or all of the
+ * new data.
  * 
  * @author pbalaji
  * 
@@ -58,6 +69,13 @@ public class DowHeartbeatPluginClient implements IHeartbeatServiceProvider {
 	private long startTime;
 	private HSQLHelper hsqlHelper;
 	private static Date pcRequestDate;
+	private static long dictGeneration;
+	private static long loaGeneration;
+	private static String dictHash;
+	private static String loaHash;
+	private static String transferId;
+	private static HashMap<String, Object> transferResponse;
+	private static int nextChunk;
 
 	/**
 	 * Initializes and registers the heartbeat plugin with the component manager
@@ -94,30 +112,59 @@ public class DowHeartbeatPluginClient implements IHeartbeatServiceProvider {
 						+ "/DowHeartbeatPluginClient_HB.properties");
 		
 		/*
-		 * Initialize and start HSQL DB.
+		 * Initialize and start HSQL DB. The network server is only started
+		 * for other consumers of the database, the plugin itself connects in
+		 * process unless hsql_in_process is false.
 		 */
-		try {
-			final String path = PluginConstants.installLocation
-					+ PluginConstants.PCROOT + PluginConstants.JARFOLDER
-					+ PluginConstants.APPFOLDER + PluginConstants.DATAFOLDER;
-			LOG.info("DHBP : " + "Starting in memory database. Path - " + path);
-			startInmemoryDB(path, PluginConstants.PCINMEMDB);
-		} catch (IOException e) {
-			LOG.error("DHBP : " + "Error while starting in-memory database. ", e);
-		} catch (AclFormatException e) {
-			LOG.error("DHBP : " + "Error while starting in-memory database. ", e);
+		final String path = PluginConstants.installLocation
+				+ PluginConstants.PCROOT + PluginConstants.JARFOLDER
+				+ PluginConstants.APPFOLDER + PluginConstants.DATAFOLDER;
+		final boolean serverEnabled = !"false"
+				.equalsIgnoreCase(PluginConstants.pluginProps.getProperty(
+						"hsql_server_enabled", "true").trim());
+		final boolean inProcess = !serverEnabled
+				|| !"false".equalsIgnoreCase(PluginConstants.pluginProps
+						.getProperty("hsql_in_process", "true").trim());
+
+		if (serverEnabled) {
+			try {
+				LOG.info("DHBP : " + "Starting in memory database. Path - " + path);
+				startInmemoryDB(path, PluginConstants.PCINMEMDB);
+			} catch (IOException e) {
+				LOG.error("DHBP : " + "Error while starting in-memory database. ", e);
+			} catch (AclFormatException e) {
+				LOG.error("DHBP : " + "Error while starting in-memory database. ", e);
+			}
+		} else {
+			LOG.info("DHBP : " + "HSQL server disabled. Opening database in process. Path - " + path);
 		}
 
-		hsqlHelper = new HSQLHelper(
-				PluginConstants.commonProps.getProperty("hsql_server_url"),
+		final String connectionUrl = inProcess ? "jdbc:hsqldb:"
+				+ getDatabasePath(path, PluginConstants.PCINMEMDB)
+				: PluginConstants.commonProps.getProperty("hsql_server_url");
+
+		LOG.info("DHBP : " + "Connecting to HSQL DB at " + connectionUrl);
+
+		hsqlHelper = new HSQLHelper(connectionUrl,
 				PluginConstants.commonProps.getProperty("hsql_user_name"),
 				PluginConstants.commonProps.getProperty("hsql_password"));
 
+		prepareStagingTables();
+
 		/*
 		 * Initialize date for initial request.
 		 */
 		pcRequestDate = new Date(0, 0, 1);
 
+		/*
+		 * No data held yet. The server never hands out negative generations.
+		 */
+		dictGeneration = -1;
+		loaGeneration = -1;
+		dictHash = null;
+		loaHash = null;
+		transferId = null;
+
 		LOG.info("DHBP : " + "DowHeartbeatPluginClient - initialized");
 
 	}
@@ -131,6 +178,15 @@ public class DowHeartbeatPluginClient implements IHeartbeatServiceProvider {
 	 * A past date ensures that the policy controller gets data from the server
 	 * when it is started.
 	 * 
+	 * The request also carries the protocol version and the generations of
+	 * the dictionary and LIC-LOA-ECCN data held by the policy controller.
+	 * Servers which understand generations use them instead of the date. The
+	 * content hashes of the data held let the server skip data which did not
+	 * change even though its generation did.
+	 * 
+	 * While a payload is being received in chunks, the request also carries
+	 * the id of the payload and the index of the next chunk.
+	 * 
 	 * @param name
 	 *            name of the HeartBeat plugin as registered with the component
 	 *            manager.
@@ -162,6 +218,23 @@ public class DowHeartbeatPluginClient implements IHeartbeatServiceProvider {
 
 		final HashMap<String, Object> map = new HashMap<String, Object>();
 		map.put("Date", pcRequestDate);
+		map.put("ProtocolVersion",
+				Integer.valueOf(PluginConstants.PROTOCOL_VERSION));
+		map.put("DictGeneration", Long.valueOf(dictGeneration));
+		map.put("LoaGeneration", Long.valueOf(loaGeneration));
+
+		if (dictHash != null) {
+			map.put("DictHash", dictHash);
+		}
+
+		if (loaHash != null) {
+			map.put("LoaHash", loaHash);
+		}
+
+		if (transferId != null) {
+			map.put("PayloadId", transferId);
+			map.put("ChunkIndex", Integer.valueOf(nextChunk));
+		}
 
 		LOG.info("DHBP : " + "Preparing Request - " + map);
 
@@ -212,6 +285,19 @@ public class DowHeartbeatPluginClient implements IHeartbeatServiceProvider {
 
 			LOG.info("DHBP : " + "Response is null! No update!");
 
+			/*
+			 * The server has nothing to send, so any transfer in progress
+			 * was given up.
+			 */
+			transferId = null;
+			transferResponse = null;
+
+		} else if (((HashMap<String, Object>) response)
+				.containsKey("PayloadId")
+				&& !receiveChunk((HashMap<String, Object>) response)) {
+
+			LOG.info("DHBP : " + "Payload is not complete yet. No update!");
+
 		} else {
 
 			/*
@@ -221,241 +307,117 @@ public class DowHeartbeatPluginClient implements IHeartbeatServiceProvider {
 
 			pcRequestDate = new Date();
 
-			final HashMap<String, Object> returnData = (HashMap<String, Object>) response;
+			HashMap<String, Object> returnData = (HashMap<String, Object>) response;
 
 			LOG.info("DHBP : " + "Got response from server - " + response.toString());
 
 			/*
-			 * Check if the HashMap contains valid data. If yes, extract the zip
-			 * file and process the data.
+			 * A payload received in chunks is applied with the response
+			 * which carried its first chunk, and is already in the zip file.
 			 */
 
-			if (returnData.get("Data") != null) {
+			final boolean staged = returnData.containsKey("PayloadId");
 
-				/*
-				 * The value contained for key "Data" is a zipped file. Extract
-				 * the file into a folder.
-				 */
-
-				final byte[] bytes = (byte[]) returnData.get("Data");
-
-				final String path = PluginConstants.installLocation
-						+ PluginConstants.PCROOT + PluginConstants.JARFOLDER
-						+ PluginConstants.APPFOLDER
-						+ PluginConstants.compressedFileName;
-				final String extractTo = PluginConstants.installLocation
-						+ PluginConstants.PCROOT + PluginConstants.JARFOLDER
-						+ PluginConstants.APPFOLDER;
-				
-				LOG.info("DHBP : " + "Zip file path : " + path);
-				LOG.info("DHBP : " + "Zip file Extract path : " + extractTo);
-
-				final File file = new File(path);
-
-				try {
-
-					final FileOutputStream fos = new FileOutputStream(file);
-					fos.write(bytes);
-					fos.close();
-
-				} catch (IOException e) {
-
-					LOG.error("DHBP : " + 
-							"Exception in writing the compressed response to the file:",
-							e);
-
-				}
-
-				Utils.uncompressFiles(extractTo, file);
-				LOG.debug("DHBP : " + "Extracted zip file.");
+			if (staged) {
+				returnData = transferResponse;
+				transferResponse = null;
+			} else {
 
 				/*
-				 * Get paths for both files.
+				 * A whole payload replaces any transfer which was given up.
 				 */
+				transferId = null;
+				transferResponse = null;
 
-				final String dictDataFilePath = extractTo + "/"
-						+ PluginConstants.dictDataFileName;
-				final String loaEccnFilePath = extractTo + "/"
-						+ PluginConstants.loaEccnFileName;
+			}
 
-				if (LOG.isDebugEnabled()) {
-					LOG.debug("DHBP : " + "DictData file path - " + dictDataFilePath);
-					LOG.debug("DHBP : " + "LoaEccn file path - " + loaEccnFilePath);
-				}
+			adoptHeldGenerations(returnData);
 
-				Statement statement = null;
-				Connection hsqlConn = hsqlHelper.openConnection();
+			/*
+			 * Check if the HashMap contains valid data. If yes, read the zip
+			 * file and process the data.
+			 */
+
+			if (staged || returnData.get("Data") != null) {
 
 				/*
-				 * Check if Dictionary Data is returned. If yes, process the
-				 * data and update the USERLIC and USER LOA tables.
+				 * The value contained for key "Data" is a zipped file. Its
+				 * entries are decoded as the zip is read, from memory or, for
+				 * a payload received in chunks, from the zip file, and the
+				 * records go straight into the HSQL tables. Nothing is
+				 * extracted to disk.
 				 */
 
-				if (returnData.get("dictFile").equals("YES")) {
-
-					final List<HashMap<String, String>> dictData = (List<HashMap<String, String>>) Utils
-							.readData(dictDataFilePath);
+				final File file = new File(PluginConstants.installLocation
+						+ PluginConstants.PCROOT + PluginConstants.JARFOLDER
+						+ PluginConstants.APPFOLDER
+						+ PluginConstants.compressedFileName);
 
-					LOG.info("DHBP : " + "DictData extracted.");
+				ZipInputStream zip = null;
 
-					/*
-					 * Do NOT update the tables if the dictionaryData is
-					 * corrupt, NULL or empty. This makes sure that the tables
-					 * on the Policy Controller are not updated with bad data.
-					 */
+				try {
 
-					if (dictData != null && !dictData.isEmpty()) {
-						
-						Set<String> uidSet = new HashSet<String>();
-						
-						for(HashMap<String, String> map : dictData) {
-							uidSet.add(map.get("UID"));
+					zip = new ZipInputStream(staged ? new BufferedInputStream(
+							new FileInputStream(file))
+							: new ByteArrayInputStream(
+									(byte[]) returnData.get("Data")));
+
+					ZipEntry entry;
+
+					while ((entry = zip.getNextEntry()) != null) {
+
+						final String entryName = entry.getName();
+
+						LOG.debug("DHBP : " + "Reading " + entryName);
+
+						/*
+						 * Dictionary data updates the USERLIC and USERLOA
+						 * tables, LOA-ECCN data the LOADB table, either in
+						 * full or as the changes since the generation held
+						 * by the client.
+						 */
+
+						if (entryName.equals(PluginConstants.dictDataFileName)
+								&& returnData.get("dictFile").equals("YES")) {
+							applyDictionaryData(returnData, zip);
+						} else if (entryName
+								.equals(PluginConstants.dictDeltaFileName)
+								&& returnData.get("dictFile").equals("DELTA")) {
+							applyDictionaryDelta(returnData, zip);
+						} else if (entryName
+								.equals(PluginConstants.loaEccnFileName)
+								&& returnData.get("loaFile").equals("YES")) {
+							applyLicLoaEccnData(returnData, zip);
+						} else if (entryName
+								.equals(PluginConstants.loaEccnDeltaFileName)
+								&& returnData.get("loaFile").equals("DELTA")) {
+							applyLicLoaEccnDelta(returnData, zip);
+						} else {
+							LOG.info("DHBP : " + "Ignoring " + entryName
+									+ " in the response.");
 						}
-						
-						LOG.info("DHBP : " + "Dictionary data is not null. Contains "
-								+ uidSet.size() + " records.");
-						LOG.info("DHBP : " + "Updating USERLIC and USERLOA tables.");
 
-						try {
-
-							statement = hsqlConn.createStatement();
-
-							final long updateStartTime = System.nanoTime();
-
-							String sqlStatement = "DELETE FROM USERLOA;";
-							statement.executeUpdate(sqlStatement);
-
-							sqlStatement = "DELETE FROM USERLIC;";
-							statement.executeUpdate(sqlStatement);
-
-							for (final HashMap<String, String> data : dictData) {
-								try
-								{
-									if (!data.containsKey("LOAS") && data.containsKey("UID") && data.containsKey("LICENSES")) {
-										if(data.get("UID")!=null && data.get("LICENSES")!=null) {
-											sqlStatement = "INSERT INTO USERLIC VALUES('"
-													+ data.get("UID").toLowerCase()
-													+ "','"
-													+ data.get("LICENSES").toLowerCase() + "');";
-											statement.executeUpdate(sqlStatement);
-										}
-										else
-										{
-											LOG.error("DHBP : " + "UserID or License or both is null. Data is  : " + data.toString());
-										}
-									}
-									if (!data.containsKey("LICENSES") && data.containsKey("LOAS") && data.containsKey("UID")) {
-										if(data.get("UID")!=null && data.get("LOAS")!=null) {
-											sqlStatement = "INSERT INTO USERLOA VALUES('"
-													+ data.get("UID").toLowerCase()
-													+ "','"
-													+ data.get("LOAS").toLowerCase() + "');";
-											statement.executeUpdate(sqlStatement);
-										}
-										else
-										{
-											LOG.error("DHBP : " + "UserID or LOA or both is null. Data is  : " + data.toString());
-										}
-									}
-								} catch (Exception e) {
-									LOG.error("DHBP : " + "Error in updating USERLIC/USERLOA for record : " + data.toString());
-								}
-							}
-
-							LOG.info("DHBP : " + "Updating user tables took "
-									+ (System.nanoTime() - updateStartTime)
-									/ 1000000 + " ms.");
-
-						} catch (SQLException e) {
-							LOG.error("DHBP : " + "Error while inserting into HSQL. ", e);							
-						} finally {
-							if (statement != null) {
-								try {
-									statement.close();
-								} catch (SQLException e) {
-									LOG.error("DHBP : " + "Cant close statement", e);
-								}
-							}
-
-							if (hsqlConn != null) {
-								try {
-									hsqlConn.close();
-								} catch (SQLException e) {
-									LOG.error("DHBP : " + "Cant close hsql connection.", e);
-								}
-							}
-						}
-					} else {
-						LOG.info("DHBP : " + "Dictionary data is NULL or of zero size. Not updating USERLIC & USERLOA tables.");
 					}
-				}
-
-				/*
-				 * Check if LOA-ECCN data is returned by the server. If yes,
-				 * update the LOA table on the HSQL database. *
-				 */
-
-				if (returnData.get("loaFile").equals("YES")) {
-
-					final List<HashMap<String, String>> loaEccnData = (List<HashMap<String, String>>) Utils
-							.readData(loaEccnFilePath);
-					LOG.info("DHBP : " + "LoaEccn data extracted.");
 
-					hsqlConn = hsqlHelper.openConnection();
+				} catch (IOException e) {
 
-					if (loaEccnData != null && !loaEccnData.isEmpty()) {
+					LOG.error("DHBP : " + 
+							"Exception in reading the compressed response:", e);
 
-						LOG.info("DHBP : " + "LOA ECCN data is not null. Contains "
-								+ loaEccnData.size() + " records.");
-						LOG.info("DHBP : " + "Updating LOAECCN table.");
+				} finally {
 
+					if (zip != null) {
 						try {
-
-							statement = hsqlConn.createStatement();
-
-							final long updateStartTime = System.nanoTime();
-
-							String sqlStatement = "DELETE FROM LOADB;";
-							statement.executeUpdate(sqlStatement);
-
-							for (final HashMap<String, String> data : loaEccnData) {
-								try{
-									String insertStmt = "INSERT INTO LOADB VALUES ('"
-											+ data.get("LICENSE").toLowerCase() + "','" + data.get("LOA").toLowerCase()
-											+ "','" + data.get("ECCN").toLowerCase() + "','"
-											+ data.get("EXPIRY") + "','" + data.get("EFFECTIVE").toLowerCase()
-											+ "');";
-									statement.executeUpdate(insertStmt);
-								} catch (Exception e) {
-									LOG.error("DHBP : " + "Error in updating LOADB for record : " + data.toString());
-								}
-							}
-							
-							LOG.info("DHBP : " + "Updating LOA table took "
-									+ (System.nanoTime() - updateStartTime)
-									/ 1000000 + " ms.");
-						} catch (SQLException e) {
-							LOG.error("DHBP : " + "Error while inserting into HSQL.", e);							
-						} finally {
-							if (statement != null) {
-								try {
-									statement.close();
-								} catch (SQLException e) {
-									LOG.error("DHBP : " + "Cant close statement.", e);
-								}
-							}
-
-							if (hsqlConn != null) {
-								try {
-									hsqlConn.close();
-								} catch (SQLException e) {
-									LOG.error("DHBP : " + "Cant close hsql connection.", e);
-								}
-							}
+							zip.close();
+						} catch (IOException e) {
+							LOG.error("DHBP : " + "Cant close the compressed response.", e);
 						}
-					}else {
-						LOG.info("DHBP : " + "LOA-ECCN data is NULL or of zero size. Not updating LOADB table.");
 					}
+
+					if (staged) {
+						file.delete();
+					}
+
 				}
 			}
 		}
@@ -522,10 +484,849 @@ public class DowHeartbeatPluginClient implements IHeartbeatServiceProvider {
 		
 		LOG.info("DHBP : " + "Database contains " + String.valueOf(dictCount) + " dictionary records and " + String.valueOf(licLoaEccnCount) + " License-LOA-ECCN records.");
 		
+		LOG.info("DHBP : " + hsqlHelper.getMetrics());
+
 		LOG.info("DHBP : " + "DowHeartbeatPluginClient total request-response time - "
 				+ ((System.nanoTime() - startTime) / 1000000.00) + " ms");
 	}
 
+	/**
+	 * Replaces the USERLIC and USERLOA tables with the dictionary data of the
+	 * response. The records are inserted into the staging tables as they are
+	 * decoded, and the tables are only replaced if the data could be read
+	 * completely and is not empty. This makes sure that the tables on the
+	 * Policy Controller are not updated with bad data.
+	 * 
+	 * @param returnData
+	 *            HashMap containing data from the server.
+	 * @param in
+	 *            the entry of the response containing the data.
+	 */
+
+	private void applyDictionaryData(final HashMap<String, Object> returnData,
+			final InputStream in) {
+
+		LOG.info("DHBP : " + "Updating USERLIC and USERLOA tables.");
+
+		final Connection hsqlConn = hsqlHelper.openConnection();
+
+		if (hsqlConn == null) {
+			return;
+		}
+
+		try {
+
+			final long updateStartTime = System.nanoTime();
+
+			final int rowCount = loadUserTables(hsqlConn,
+					RecordReader.open(in), getBatchSize());
+
+			if (rowCount == 0) {
+				LOG.info("DHBP : " + "Dictionary data is of zero size. Not updating USERLIC & USERLOA tables.");
+				return;
+			}
+
+			swapStagingTables(hsqlConn, "USERLIC", "USERLOA");
+
+			final long updateTime = System.nanoTime() - updateStartTime;
+
+			LOG.info("DHBP : " + "Updating user tables with " + rowCount
+					+ " rows took " + updateTime / 1000000 + " ms, "
+					+ getRowsPerSecond(rowCount, updateTime) + " rows/s.");
+
+			dictGeneration = getGeneration(returnData, "DictGeneration");
+			dictHash = getHash(returnData, "DictHash");
+
+		} catch (IOException e) {
+			LOG.error("DHBP : " + "Dictionary data could not be read. Not updating USERLIC & USERLOA tables.", e);
+			rollback(hsqlConn);
+		} catch (SQLException e) {
+			LOG.error("DHBP : " + "Error while inserting into HSQL. ", e);
+			rollback(hsqlConn);
+		} finally {
+			hsqlHelper.closeConnection(hsqlConn);
+		}
+
+	}
+
+	/**
+	 * Replaces the LOADB table with the LOA-ECCN data of the response, in the
+	 * same way as the dictionary data.
+	 * 
+	 * @param returnData
+	 *            HashMap containing data from the server.
+	 * @param in
+	 *            the entry of the response containing the data.
+	 */
+
+	private void applyLicLoaEccnData(final HashMap<String, Object> returnData,
+			final InputStream in) {
+
+		LOG.info("DHBP : " + "Updating LOAECCN table.");
+
+		final Connection hsqlConn = hsqlHelper.openConnection();
+
+		if (hsqlConn == null) {
+			return;
+		}
+
+		try {
+
+			final long updateStartTime = System.nanoTime();
+
+			final int rowCount = loadLicLoaEccnTable(hsqlConn,
+					RecordReader.open(in), getBatchSize());
+
+			if (rowCount == 0) {
+				LOG.info("DHBP : " + "LOA-ECCN data is of zero size. Not updating LOADB table.");
+				return;
+			}
+
+			swapStagingTables(hsqlConn, "LOADB");
+
+			final long updateTime = System.nanoTime() - updateStartTime;
+
+			LOG.info("DHBP : " + "Updating LOA table with " + rowCount
+					+ " rows took " + updateTime / 1000000 + " ms, "
+					+ getRowsPerSecond(rowCount, updateTime) + " rows/s.");
+
+			loaGeneration = getGeneration(returnData, "LoaGeneration");
+			loaHash = getHash(returnData, "LoaHash");
+
+		} catch (IOException e) {
+			LOG.error("DHBP : " + "LOA-ECCN data could not be read. Not updating LOADB table.", e);
+			rollback(hsqlConn);
+		} catch (SQLException e) {
+			LOG.error("DHBP : " + "Error while inserting into HSQL.", e);
+			rollback(hsqlConn);
+		} finally {
+			hsqlHelper.closeConnection(hsqlConn);
+		}
+
+	}
+
+	/**
+	 * Applies the dictionary rows added and removed since the generation held
+	 * by the client. The changes are only applied if they were computed
+	 * against that generation, and are applied in a single transaction so
+	 * that a failure leaves the tables as they were.
+	 * 
+	 * @param returnData
+	 *            HashMap containing data from the server.
+	 * @param in
+	 *            the entry of the response containing the changes.
+	 */
+
+	private void applyDictionaryDelta(final HashMap<String, Object> returnData,
+			final InputStream in) {
+
+		final HashMap<String, Object> delta = (HashMap<String, Object>) Utils
+				.readData(in);
+
+		if (delta == null) {
+			LOG.error("DHBP : " + "Dictionary changes could not be read. Not updating USERLIC & USERLOA tables.");
+			return;
+		}
+
+		final long baseGeneration = getGeneration(returnData,
+				"DictBaseGeneration");
+
+		if (baseGeneration != dictGeneration) {
+
+			/*
+			 * The changes do not apply to the data held. Ask for the full
+			 * data with the next request.
+			 */
+
+			LOG.error("DHBP : " + "Dictionary changes are based on generation "
+					+ baseGeneration + " but generation " + dictGeneration
+					+ " is held. Requesting full data.");
+			dictGeneration = -1;
+			dictHash = null;
+			return;
+		}
+
+		final List<HashMap<String, String>> added = (List<HashMap<String, String>>) delta
+				.get(DeltaHelper.ADDED);
+		final List<HashMap<String, String>> removed = (List<HashMap<String, String>>) delta
+				.get(DeltaHelper.REMOVED);
+
+		LOG.info("DHBP : " + "Applying dictionary changes. " + added.size()
+				+ " rows added, " + removed.size() + " rows removed.");
+
+		final Connection hsqlConn = hsqlHelper.openConnection();
+
+		if (hsqlConn == null) {
+			return;
+		}
+
+		PreparedStatement deleteLic = null;
+		PreparedStatement deleteLoa = null;
+		PreparedStatement insertLic = null;
+		PreparedStatement insertLoa = null;
+
+		try {
+
+			final long updateStartTime = System.nanoTime();
+
+			hsqlConn.setAutoCommit(false);
+
+			deleteLic = hsqlConn
+					.prepareStatement("DELETE FROM USERLIC WHERE UID = ? AND LICENSE = ?;");
+			deleteLoa = hsqlConn
+					.prepareStatement("DELETE FROM USERLOA WHERE UID = ? AND LOA = ?;");
+			insertLic = hsqlConn
+					.prepareStatement("INSERT INTO USERLIC VALUES(?, ?);");
+			insertLoa = hsqlConn
+					.prepareStatement("INSERT INTO USERLOA VALUES(?, ?);");
+
+			for (final HashMap<String, String> data : removed) {
+				if (data.containsKey("LICENSES")) {
+					executeRowUpdate(deleteLic, data.get("UID"),
+							data.get("LICENSES"));
+				} else {
+					executeRowUpdate(deleteLoa, data.get("UID"),
+							data.get("LOAS"));
+				}
+			}
+
+			for (final HashMap<String, String> data : added) {
+				try {
+					if (data.containsKey("LICENSES")) {
+						executeRowUpdate(insertLic, data.get("UID"),
+								data.get("LICENSES"));
+					} else {
+						executeRowUpdate(insertLoa, data.get("UID"),
+								data.get("LOAS"));
+					}
+				} catch (SQLException e) {
+					LOG.error("DHBP : " + "Error in updating USERLIC/USERLOA for record : " + data.toString());
+				}
+			}
+
+			hsqlConn.commit();
+
+			dictGeneration = getGeneration(returnData, "DictGeneration");
+			dictHash = getHash(returnData, "DictHash");
+
+			LOG.info("DHBP : " + "Updating user tables took "
+					+ (System.nanoTime() - updateStartTime) / 1000000
+					+ " ms.");
+
+		} catch (SQLException e) {
+			LOG.error("DHBP : " + "Error while applying dictionary changes to HSQL. ", e);
+			try {
+				hsqlConn.rollback();
+			} catch (SQLException ex) {
+				LOG.error("DHBP : " + "Cant rollback hsql connection.", ex);
+			}
+		} finally {
+			closeStatement(deleteLic);
+			closeStatement(deleteLoa);
+			closeStatement(insertLic);
+			closeStatement(insertLoa);
+			hsqlHelper.closeConnection(hsqlConn);
+		}
+
+	}
+
+	/**
+	 * Applies the LOA-ECCN rows inserted, deleted and with updated dates since
+	 * the generation held by the client. Rows are matched on the unique key
+	 * (LICENSE, LOA, ECCN) of the LOADB table. As for the dictionary, the
+	 * changes are only applied if they were computed against the generation
+	 * held, in a single transaction.
+	 * 
+	 * @param returnData
+	 *            HashMap containing data from the server.
+	 * @param in
+	 *            the entry of the response containing the changes.
+	 */
+
+	private void applyLicLoaEccnDelta(final HashMap<String, Object> returnData,
+			final InputStream in) {
+
+		final HashMap<String, Object> delta = (HashMap<String, Object>) Utils
+				.readData(in);
+
+		if (delta == null) {
+			LOG.error("DHBP : " + "LOA-ECCN changes could not be read. Not updating LOADB table.");
+			return;
+		}
+
+		final long baseGeneration = getGeneration(returnData,
+				"LoaBaseGeneration");
+
+		if (baseGeneration != loaGeneration) {
+			LOG.error("DHBP : " + "LOA-ECCN changes are based on generation "
+					+ baseGeneration + " but generation " + loaGeneration
+					+ " is held. Requesting full data.");
+			loaGeneration = -1;
+			loaHash = null;
+			return;
+		}
+
+		final List<HashMap<String, String>> added = (List<HashMap<String, String>>) delta
+				.get(DeltaHelper.ADDED);
+		final List<HashMap<String, String>> removed = (List<HashMap<String, String>>) delta
+				.get(DeltaHelper.REMOVED);
+		final List<HashMap<String, String>> updated = (List<HashMap<String, String>>) delta
+				.get(DeltaHelper.UPDATED);
+
+		LOG.info("DHBP : " + "Applying LOA-ECCN changes. " + added.size()
+				+ " rows added, " + removed.size() + " rows removed, "
+				+ updated.size() + " rows updated.");
+
+		final Connection hsqlConn = hsqlHelper.openConnection();
+
+		if (hsqlConn == null) {
+			return;
+		}
+
+		PreparedStatement delete = null;
+		PreparedStatement update = null;
+		PreparedStatement insert = null;
+
+		try {
+
+			final long updateStartTime = System.nanoTime();
+
+			hsqlConn.setAutoCommit(false);
+
+			delete = hsqlConn
+					.prepareStatement("DELETE FROM LOADB WHERE LICENSE = ? AND LOA = ? AND ECCN = ?;");
+			update = hsqlConn
+					.prepareStatement("UPDATE LOADB SET EXPIRY = ?, EFFECTIVE = ? WHERE LICENSE = ? AND LOA = ? AND ECCN = ?;");
+			insert = hsqlConn
+					.prepareStatement("INSERT INTO LOADB VALUES(?, ?, ?, ?, ?);");
+
+			for (final HashMap<String, String> data : removed) {
+				setLicLoaEccnKey(delete, 1, data);
+				delete.executeUpdate();
+			}
+
+			for (final HashMap<String, String> data : updated) {
+				update.setDate(1, java.sql.Date.valueOf(data.get("EXPIRY")));
+				update.setDate(2, java.sql.Date.valueOf(data.get("EFFECTIVE")));
+				setLicLoaEccnKey(update, 3, data);
+				update.executeUpdate();
+			}
+
+			for (final HashMap<String, String> data : added) {
+				try {
+					setLicLoaEccnKey(insert, 1, data);
+					insert.setDate(4, java.sql.Date.valueOf(data.get("EXPIRY")));
+					insert.setDate(5, java.sql.Date.valueOf(data.get("EFFECTIVE")));
+					insert.executeUpdate();
+				} catch (Exception e) {
+					LOG.error("DHBP : " + "Error in updating LOADB for record : " + data.toString());
+				}
+			}
+
+			hsqlConn.commit();
+
+			loaGeneration = getGeneration(returnData, "LoaGeneration");
+			loaHash = getHash(returnData, "LoaHash");
+
+			LOG.info("DHBP : " + "Updating LOA table took "
+					+ (System.nanoTime() - updateStartTime) / 1000000
+					+ " ms.");
+
+		} catch (Exception e) {
+			LOG.error("DHBP : " + "Error while applying LOA-ECCN changes to HSQL.", e);
+			try {
+				hsqlConn.rollback();
+			} catch (SQLException ex) {
+				LOG.error("DHBP : " + "Cant rollback hsql connection.", ex);
+			}
+		} finally {
+			closeStatement(delete);
+			closeStatement(update);
+			closeStatement(insert);
+			hsqlHelper.closeConnection(hsqlConn);
+		}
+
+	}
+
+	/**
+	 * Loads the dictionary data read into the staging tables of USERLIC and
+	 * USERLOA in a single pass, inserting the rows in batches within a single
+	 * transaction.
+	 * 
+	 * @return the number of rows inserted.
+	 */
+
+	private int loadUserTables(final Connection hsqlConn,
+			final RecordReader reader, final int batchSize)
+			throws SQLException, IOException {
+
+		clearStagingTables(hsqlConn, "USERLIC", "USERLOA");
+
+		final BatchInserter licenses = new BatchInserter(hsqlConn,
+				"INSERT INTO USERLIC_STAGE VALUES(?, ?);", batchSize,
+				"DHBP : Error in updating USERLIC/USERLOA for record : ");
+		BatchInserter loas = null;
+
+		try {
+
+			loas = new BatchInserter(hsqlConn,
+					"INSERT INTO USERLOA_STAGE VALUES(?, ?);", batchSize,
+					"DHBP : Error in updating USERLIC/USERLOA for record : ");
+
+			HashMap<String, String> data;
+
+			while ((data = reader.readRecord()) != null) {
+				addUserRow(licenses, data, "LICENSES", "LOAS", "License");
+				addUserRow(loas, data, "LOAS", "LICENSES", "LOA");
+			}
+
+			licenses.flush();
+			loas.flush();
+			hsqlConn.commit();
+
+			return licenses.getInserted() + loas.getInserted();
+
+		} finally {
+			licenses.close();
+			if (loas != null) {
+				loas.close();
+			}
+		}
+
+	}
+
+	/**
+	 * Adds the row of a dictionary data record to USERLIC or USERLOA, if the
+	 * record holds a value of that table.
+	 * 
+	 * @param field
+	 *            field of the records holding the values of the table.
+	 * @param otherField
+	 *            field of the records holding the values of the other table.
+	 * @param label
+	 *            name of the values in the error log.
+	 */
+
+	private void addUserRow(final BatchInserter inserter,
+			final HashMap<String, String> data, final String field,
+			final String otherField, final String label) throws SQLException {
+
+		if (!data.containsKey(otherField) && data.containsKey("UID")
+				&& data.containsKey(field)) {
+			if (data.get("UID") != null && data.get(field) != null) {
+				inserter.add(data, data.get("UID").toLowerCase(), data
+						.get(field).toLowerCase());
+			} else {
+				LOG.error("DHBP : " + "UserID or " + label
+						+ " or both is null. Data is  : " + data.toString());
+			}
+		}
+
+	}
+
+	/**
+	 * Loads the LOA-ECCN data read into the staging table of LOADB, inserting
+	 * the rows in batches within a single transaction.
+	 * 
+	 * @return the number of rows inserted.
+	 */
+
+	private int loadLicLoaEccnTable(final Connection hsqlConn,
+			final RecordReader reader, final int batchSize)
+			throws SQLException, IOException {
+
+		clearStagingTables(hsqlConn, "LOADB");
+
+		final BatchInserter inserter = new BatchInserter(hsqlConn,
+				"INSERT INTO LOADB_STAGE VALUES(?, ?, ?, ?, ?);", batchSize,
+				"DHBP : Error in updating LOADB for record : ");
+
+		try {
+
+			HashMap<String, String> data;
+
+			while ((data = reader.readRecord()) != null) {
+				try {
+					inserter.add(data, data.get("LICENSE").toLowerCase(), data
+							.get("LOA").toLowerCase(), data.get("ECCN")
+							.toLowerCase(), java.sql.Date.valueOf(data
+							.get("EXPIRY")), java.sql.Date.valueOf(data
+							.get("EFFECTIVE")));
+				} catch (RuntimeException e) {
+					LOG.error("DHBP : " + "Error in updating LOADB for record : " + data.toString());
+				}
+			}
+
+			inserter.flush();
+			hsqlConn.commit();
+
+			return inserter.getInserted();
+
+		} finally {
+			inserter.close();
+		}
+
+	}
+
+	/**
+	 * Empties the staging tables of the given tables, leaving auto-commit off
+	 * for the load.
+	 */
+
+	private void clearStagingTables(final Connection hsqlConn,
+			final String... tables) throws SQLException {
+
+		hsqlConn.setAutoCommit(false);
+
+		final Statement statement = hsqlConn.createStatement();
+
+		try {
+			for (final String table : tables) {
+				statement.executeUpdate("DELETE FROM " + table + "_STAGE;");
+			}
+		} finally {
+			closeStatement(statement);
+		}
+
+	}
+
+	/**
+	 * Replaces the rows of the given tables with the rows of their staging
+	 * tables in a single transaction, then empties the staging tables. All
+	 * rows are copied, so the transaction takes time proportional to the
+	 * number of rows, though less than the load. With MVCC lookups keep
+	 * reading the old rows until the commit.
+	 * 
+	 * @param tables
+	 *            the tables to replace.
+	 */
+
+	private void swapStagingTables(final Connection hsqlConn,
+			final String... tables) throws SQLException {
+
+		final long swapStartTime = System.nanoTime();
+
+		hsqlConn.setAutoCommit(false);
+
+		final Statement statement = hsqlConn.createStatement();
+
+		try {
+
+			for (final String table : tables) {
+				statement.executeUpdate("DELETE FROM " + table + ";");
+				statement.executeUpdate("INSERT INTO " + table
+						+ " SELECT * FROM " + table + "_STAGE;");
+			}
+
+			hsqlConn.commit();
+
+			for (final String table : tables) {
+				statement.executeUpdate("DELETE FROM " + table + "_STAGE;");
+			}
+
+			hsqlConn.commit();
+
+		} finally {
+			closeStatement(statement);
+		}
+
+		LOG.info("DHBP : " + "Switching to the new data took "
+				+ (System.nanoTime() - swapStartTime) / 1000000 + " ms.");
+
+	}
+
+	/**
+	 * Switches the database to MVCC and creates the staging tables which
+	 * full data is loaded into. The staging tables are global temporary
+	 * tables, so their rows are neither logged nor persisted.
+	 */
+
+	private void prepareStagingTables() {
+
+		final Connection hsqlConn = hsqlHelper.openConnection();
+
+		if (hsqlConn == null) {
+			return;
+		}
+
+		Statement statement = null;
+
+		try {
+
+			statement = hsqlConn.createStatement();
+			statement.execute("SET DATABASE TRANSACTION CONTROL MVCC;");
+
+			final DatabaseMetaData metaData = hsqlConn.getMetaData();
+			final String[][] stagingTables = {
+					{ "USERLIC_STAGE",
+							"UID VARCHAR(100), LICENSE VARCHAR(100), PRIMARY KEY(UID, LICENSE)" },
+					{ "USERLOA_STAGE",
+							"UID VARCHAR(100), LOA VARCHAR(100), PRIMARY KEY(UID, LOA)" },
+					{ "LOADB_STAGE",
+							"LICENSE VARCHAR(100), LOA VARCHAR(100), ECCN VARCHAR(100), EXPIRY DATE, EFFECTIVE DATE, UNIQUE(LICENSE, LOA, ECCN)" } };
+
+			for (final String[] stagingTable : stagingTables) {
+
+				final ResultSet tables = metaData.getTables(null, "PUBLIC",
+						stagingTable[0], null);
+				final boolean exists = tables.next();
+				tables.close();
+
+				if (!exists) {
+					statement.execute("CREATE GLOBAL TEMPORARY TABLE "
+							+ stagingTable[0] + " (" + stagingTable[1]
+							+ ") ON COMMIT PRESERVE ROWS;");
+					LOG.info("DHBP : " + "Created staging table "
+							+ stagingTable[0] + ".");
+				}
+
+			}
+
+		} catch (SQLException e) {
+			LOG.error("DHBP : " + "Error while preparing staging tables. ", e);
+		} finally {
+			closeStatement(statement);
+			hsqlHelper.closeConnection(hsqlConn);
+		}
+
+	}
+
+	/**
+	 * @return the number of rows inserted in a batch, from the
+	 *         hsql_batch_size property.
+	 */
+
+	private static int getBatchSize() {
+
+		return (int) Math.max(1, PropertyLoader.getLongProperty(
+				PluginConstants.pluginProps, "hsql_batch_size", 1000));
+
+	}
+
+	private static long getRowsPerSecond(final int rowCount,
+			final long nanoTime) {
+
+		return rowCount * 1000000000L / Math.max(1, nanoTime);
+
+	}
+
+	private void rollback(final Connection hsqlConn) {
+
+		try {
+			hsqlConn.rollback();
+		} catch (SQLException e) {
+			LOG.error("DHBP : " + "Cant rollback hsql connection.", e);
+		}
+
+	}
+
+	private void setLicLoaEccnKey(final PreparedStatement statement,
+			final int index, final HashMap<String, String> data)
+			throws SQLException {
+
+		statement.setString(index, data.get("LICENSE").toLowerCase());
+		statement.setString(index + 1, data.get("LOA").toLowerCase());
+		statement.setString(index + 2, data.get("ECCN").toLowerCase());
+
+	}
+
+	private void executeRowUpdate(final PreparedStatement statement,
+			final String uid, final String value) throws SQLException {
+
+		statement.setString(1, uid.toLowerCase());
+		statement.setString(2, value.toLowerCase());
+		statement.executeUpdate();
+
+	}
+
+	private void closeStatement(final Statement statement) {
+
+		if (statement != null) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				LOG.error("DHBP : " + "Cant close statement.", e);
+			}
+		}
+
+	}
+
+	/**
+	 * Writes a chunk of a payload sent over several heartbeats to the staging
+	 * file. The first chunk starts a new transfer. Once all chunks are in
+	 * and the SHA-256 of the staging file matches the payload id, the staging
+	 * file becomes the zip file.
+	 * 
+	 * A chunk which does not follow the chunks received so far gives up the
+	 * transfer, and the next request asks for the data again.
+	 * 
+	 * @param chunk
+	 *            HashMap containing a chunk from the server.
+	 * @return true if the payload is complete and in the zip file.
+	 */
+
+	private boolean receiveChunk(final HashMap<String, Object> chunk) {
+
+		final String payloadId = (String) chunk.get("PayloadId");
+		final int chunkIndex = ((Number) chunk.get("ChunkIndex")).intValue();
+		final int chunkCount = ((Number) chunk.get("ChunkCount")).intValue();
+		final byte[] bytes = (byte[]) chunk.remove("Data");
+
+		if (chunkIndex == 0) {
+
+			/*
+			 * The first chunk comes with the flags and generations, which
+			 * are kept to apply the payload once complete.
+			 */
+
+			transferId = payloadId;
+			transferResponse = chunk;
+			nextChunk = 0;
+
+			LOG.info("DHBP : " + "Receiving payload " + payloadId + " in "
+					+ chunkCount + " chunks.");
+
+		} else if (!payloadId.equals(transferId) || chunkIndex != nextChunk) {
+
+			LOG.error("DHBP : " + "Unexpected chunk " + chunkIndex
+					+ " of payload " + payloadId + ". Starting over.");
+			transferId = null;
+			return false;
+
+		}
+
+		final String appFolder = PluginConstants.installLocation
+				+ PluginConstants.PCROOT + PluginConstants.JARFOLDER
+				+ PluginConstants.APPFOLDER;
+		final File staging = new File(appFolder
+				+ PluginConstants.stagingFileName);
+
+		try {
+
+			final FileOutputStream fos = new FileOutputStream(staging,
+					chunkIndex > 0);
+
+			try {
+				fos.write(bytes);
+			} finally {
+				fos.close();
+			}
+
+		} catch (IOException e) {
+
+			LOG.error("DHBP : " + "Exception in writing chunk " + chunkIndex
+					+ " to the staging file. Starting over.", e);
+			transferId = null;
+			return false;
+
+		}
+
+		nextChunk++;
+
+		if (nextChunk < chunkCount) {
+			LOG.info("DHBP : " + "Received chunk " + chunkIndex + "/"
+					+ chunkCount + " of payload " + payloadId + ".");
+			return false;
+		}
+
+		transferId = null;
+
+		if (!payloadId.equals(Utils.sha256(staging))) {
+
+			LOG.error("DHBP : " + "Checksum of payload " + payloadId
+					+ " does not match. Starting over.");
+			staging.delete();
+			return false;
+
+		}
+
+		final File file = new File(appFolder
+				+ PluginConstants.compressedFileName);
+
+		if (file.exists() && !file.delete() || !staging.renameTo(file)) {
+
+			LOG.error("DHBP : " + "Cannot move payload " + payloadId
+					+ " to the zip file. Starting over.");
+			return false;
+
+		}
+
+		LOG.info("DHBP : " + "Received payload " + payloadId + ".");
+
+		return true;
+
+	}
+
+	/**
+	 * Gets the generation sent by the server for the given key.
+	 * 
+	 * @param data
+	 *            HashMap containing data from the server.
+	 * @param key
+	 *            key of the generation.
+	 * @return the generation, or -1 if the server did not send one.
+	 */
+
+	private static long getGeneration(final HashMap<String, Object> data,
+			final String key) {
+
+		final Object generation = data.get(key);
+
+		if (generation instanceof Number) {
+			return ((Number) generation).longValue();
+		}
+
+		return -1;
+
+	}
+
+	/**
+	 * Gets the content hash sent by the server for the given key.
+	 * 
+	 * @param data
+	 *            HashMap containing data from the server.
+	 * @param key
+	 *            key of the hash.
+	 * @return the hash, or null if the server did not send one.
+	 */
+
+	private static String getHash(final HashMap<String, Object> data,
+			final String key) {
+
+		final Object hash = data.get(key);
+
+		if (hash instanceof String) {
+			return (String) hash;
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * Adopts the generation of the data sets which are not sent because the
+	 * content held is the same as on the server, so that the server does not
+	 * have to compare their hashes on every request.
+	 * 
+	 * @param returnData
+	 *            HashMap containing data from the server.
+	 */
+
+	private static void adoptHeldGenerations(
+			final HashMap<String, Object> returnData) {
+
+		if ("NO".equals(returnData.get("dictFile")) && dictHash != null
+				&& dictHash.equals(returnData.get("DictHash"))) {
+			dictGeneration = getGeneration(returnData, "DictGeneration");
+		}
+
+		if ("NO".equals(returnData.get("loaFile")) && loaHash != null
+				&& loaHash.equals(returnData.get("LoaHash"))) {
+			loaGeneration = getGeneration(returnData, "LoaGeneration");
+		}
+
+	}
+
 	/**
 	 * Gets the installation path.
 	 * 
@@ -539,6 +1340,25 @@ public class DowHeartbeatPluginClient implements IHeartbeatServiceProvider {
 
 	}
 
+	/**
+	 * Gets the path of the HSQL database, as served by the HSQL server and as
+	 * opened in process. Both must be the same for the server and the plugin
+	 * to share the database.
+	 * 
+	 * @param path
+	 *            path in which the database is created.
+	 * @param dbName
+	 *            name of the in memory database.
+	 * @return the database path, with its file: type.
+	 */
+
+	private static String getDatabasePath(final String path,
+			final String dbName) {
+
+		return "file:/" + path + dbName;
+
+	}
+
 	/**
 	 * Starts the in memory HSQL database using the path and the database name
 	 * given as parameters.
@@ -555,7 +1375,7 @@ public class DowHeartbeatPluginClient implements IHeartbeatServiceProvider {
 			throws IOException, AclFormatException {
 
 		final HsqlProperties hProps = new HsqlProperties();
-		hProps.setProperty("server.database.0", "file:/" + path + dbName);
+		hProps.setProperty("server.database.0", getDatabasePath(path, dbName));
 		hProps.setProperty("server.dbname.0", dbName);
 		LOG.info("DHBP : " + "HSQL DB Name - " + dbName);
 
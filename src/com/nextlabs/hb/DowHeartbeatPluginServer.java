@@ -1,19 +1,11 @@
 package com.nextlabs.hb;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
@@ -22,10 +14,26 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,10 +46,24 @@ import com.bluejungle.framework.comp.LifestyleType;
 import com.bluejungle.framework.heartbeat.IServerHeartbeatManager;
 import com.bluejungle.framework.heartbeat.ServerHeartbeatManagerImpl;
 import com.bluejungle.framework.utils.SerializationUtils;
+import com.nextlabs.hb.helper.CompactDictionary;
+import com.nextlabs.hb.helper.CsvReader;
+import com.nextlabs.hb.helper.DataSnapshot;
+import com.nextlabs.hb.helper.DeltaHelper;
 import com.nextlabs.hb.helper.DictionaryData;
+import com.nextlabs.hb.helper.EnrollmentUsers;
+import com.nextlabs.hb.helper.ErrorReport;
+import com.nextlabs.hb.helper.FileWatcher;
+import com.nextlabs.hb.helper.Payload;
+import com.nextlabs.hb.helper.PayloadBuilder;
+import com.nextlabs.hb.helper.PayloadCache;
 import com.nextlabs.hb.helper.PluginConstants;
 import com.nextlabs.hb.helper.PropertyLoader;
+import com.nextlabs.hb.helper.RecordWriter;
+import com.nextlabs.hb.helper.SingleFlight;
+import com.nextlabs.hb.helper.SnapshotHistory;
 import com.nextlabs.hb.helper.Utils;
+import com.nextlabs.hb.helper.ValueValidator;
 
 /** DowHeartbeatPluginServer class is used to collect and transmit licensing
  * information from the server to the client. The information is collected from
@@ -55,6 +77,18 @@ import com.nextlabs.hb.helper.Utils;
  * PC scenarios and also conserves bandwidth by not sending data when the client
  * is up to date.
  * 
+ * Policy Controllers which send the generations of the data they hold are
+ * answered by comparing those generations with the generations of the data
+ * on the server, which does not depend on the clocks of either side.
+ * 
+ * The data is collected by a background snapshot builder which checks both
+ * sources for changes periodically, and the CSV file as soon as it changes,
+ * and publishes complete snapshots. The heartbeat requests only ever serve
+ * published snapshots and never touch the file system or the dictionary.
+ * 
+ * Data files are sent in the compact record format to Policy Controllers
+ * which read it, and Java serialized to older ones.
+ * 
  * Many of the parameters, including the database connection string, the table
  * column name mapping etc, are configurable through the property files.
  * 
@@ -67,6 +101,106 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 		NONE, SENDFILE, UPDATEFILEANDSEND
 	};
 
+	/** Licenses, LOAs, errors and counts of the users of one enrollment, kept
+	 * until the records of the enrollment change. */
+	private static final class EnrollmentData {
+		final long version;
+		CompactDictionary rows;
+		final List<ErrorReport.Entry> errors = new ArrayList<ErrorReport.Entry>();
+		int totalCount;
+		int validCount;
+		int licLoaCount;
+		int recordCount;
+
+		EnrollmentData(long version) {
+			this.version = version;
+		}
+	}
+
+	private static final int PAYLOAD_CACHE_SIZE = 16;
+
+	/* Compressed payloads, keyed by content and data generations. */
+	private final PayloadCache payloadCache = new PayloadCache(
+			PAYLOAD_CACHE_SIZE);
+
+	/* Payloads being sent in chunks, keyed by their hash. */
+	private final PayloadCache transfers = new PayloadCache(
+			PAYLOAD_CACHE_SIZE);
+
+	/* Size of the chunks payloads are sent in, 0 to send them whole. */
+	private long transferChunkSize;
+
+	/* Last error report started for each error log file. Only used by the
+	 * snapshot builder. */
+	private final Map<String, ErrorReport> errorReports = new ConcurrentHashMap<String, ErrorReport>();
+
+	/* Validated data of each enrollment, by domain name. Only used by the
+	 * snapshot builder. */
+	private Map<String, EnrollmentData> enrollmentData = new HashMap<String, EnrollmentData>();
+
+	/* Rows of the last few dictionary snapshots, to compute deltas from. */
+	private SnapshotHistory<CompactDictionary> dictHistory;
+
+	/* Rows of the last few LIC-LOA-ECCN snapshots, keyed on LICENSE, LOA and
+	 * ECCN and mapped to their dates. */
+	private SnapshotHistory<Map<String, String>> loaEccnHistory;
+
+	/* Generation of each data set, bumped every time a snapshot is built.
+	 * Seeded with the start time so that generations keep increasing across
+	 * restarts of the Control Center. */
+	private final AtomicLong dictGeneration = new AtomicLong(
+			System.currentTimeMillis());
+	private final AtomicLong loaEccnGeneration = new AtomicLong(
+			System.currentTimeMillis());
+
+	/* Current snapshots. Only ever replaced as a whole by the snapshot
+	 * builder, heartbeats read them without locking. */
+	private volatile DataSnapshot<CompactDictionary> dictSnapshot;
+	private volatile DataSnapshot<Map<String, String>> loaEccnSnapshot;
+
+	/* Latest source versions (dictionary consistent time, CSV modified time)
+	 * seen by the snapshot builder. */
+	private volatile long observedDictSourceTime = -1;
+	private volatile long observedLoaEccnSourceTime = -1;
+
+	/* Bounds the dates remembered while parsing the CSV. */
+	private static final int MAX_PARSED_DATES = 10000;
+
+	private static final String DICT_SOURCE = "Dictionary";
+	private static final String LOA_ECCN_SOURCE = "LIC-LOA-ECCN";
+
+	/* Rebuilds queued or running, at most one per source. */
+	private final SingleFlight<String, DataSnapshot<?>> rebuilds = new SingleFlight<String, DataSnapshot<?>>();
+
+	/* Payloads being built, by their key in the payload cache. */
+	private final SingleFlight<String, Payload> payloadBuilds = new SingleFlight<String, Payload>();
+
+	/* Runs a payload build in the heartbeat which asked for it first. */
+	private static final Executor CALLER_RUNS = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private ScheduledExecutorService snapshotScheduler;
+	private ExecutorService snapshotBuilder;
+
+	/* Watches the CSV file, so that changes are picked up without waiting for
+	 * the next check. */
+	private FileWatcher csvWatcher;
+	private ScheduledFuture<?> pendingCsvRefresh;
+
+	/* Validation rules, read once at initialization. */
+	private ValueValidator loaValidator;
+
+	private ValueValidator licenseValidator;
+
+	private ValueValidator eccnValidator;
+
+	/* Whether dictionary LOAs are checked with the LOA rules instead of the
+	 * license rules they have always been checked with. */
+	private boolean dictionaryLoaRules;
+
 	/** Initializes and registers the HeartBeat plugin with the COntrol Center
 	 * Component Manager. This method also loads the property files from their
 	 * respective locations for use in other functions. */
@@ -83,6 +217,9 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 				.loadProperties(PluginConstants.installLocation
 						+ PluginConstants.CCROOT + PluginConstants.CONFFOLDER
 						+ "/DowHeartbeatPluginServer_HB.properties");
+		loadValidators();
+		transferChunkSize = PropertyLoader.getLongProperty(
+				PluginConstants.pluginProps, "transfer_chunk_size", 1048576);
 		/* Register the heartbeat plugin. */
 		final ComponentInfo<ServerHeartbeatManagerImpl> heartbeatManagerComp = new ComponentInfo<ServerHeartbeatManagerImpl>(
 				IServerHeartbeatManager.COMP_NAME,
@@ -91,24 +228,12 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 		final IServerHeartbeatManager heartbeatMgr = ComponentManagerFactory
 				.getComponentManager().getComponent(heartbeatManagerComp);
 		heartbeatMgr.register(PluginConstants.NAME, this);
-		try {
-			LOG.info("DHBP : " + "Creating Dictionary Data file.");
-			List<HashMap<String, String>> dictionaryData = getDictionaryData();
-			if (dictionaryData != null && !dictionaryData.isEmpty()) {
-				writeDictionaryData(dictionaryData);
-			}
-		} catch (Exception e) {
-			LOG.error("DHBP : " + "Error creating Dictionary Data file.", e);
-		}
-		try {
-			LOG.info("DHBP : " + "Creating LIC-LOA-ECCN Data file.");
-			List<HashMap<String, String>> licLoaEccnData = getLicLoaEccnData();
-			if (licLoaEccnData != null && !licLoaEccnData.isEmpty()) {
-				writeLicLoaEccnData(licLoaEccnData);
-			}
-		} catch (Exception e) {
-			LOG.error("DHBP : " + "Error creating Dictionary Data file.", e);
-		}
+		final int historySize = (int) PropertyLoader.getLongProperty(
+				PluginConstants.pluginProps, "snapshot_history_size", 5);
+		dictHistory = new SnapshotHistory<CompactDictionary>(historySize);
+		loaEccnHistory = new SnapshotHistory<Map<String, String>>(historySize);
+		loadPersistedSnapshots();
+		startSnapshotBuilder();
 		LOG.info("DHBP : " + "DowHeartbeatPlugin is registered by component - "
 				+ component.getComponentName());
 		LOG.info("DHBP : " + "DowHeartbeatPluginServer -- Initialized.");
@@ -185,313 +310,348 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 		return decision.NONE;
 	}
 
-	private boolean validate(String parameter, String propertyName,
-			int defaultLength) {
-		boolean isValid = false;
-		int parameterLength = defaultLength;
-		try {
-			String propertyString = PluginConstants.pluginProps
-					.getProperty(propertyName);
-			if (propertyString != null && !propertyString.isEmpty()) {
-				parameterLength = Integer.parseInt(propertyString.trim());
-			}
-		} catch (Exception e) {
-			LOG.error("DHBP : " + "Error getting " + propertyName
-					+ " from properties file. Using default value of "
-					+ String.valueOf(defaultLength) + ".");
-			parameterLength = defaultLength;
-		}
-		if (parameter != null && !parameter.isEmpty()) {
-			if (parameter.trim().length() <= parameterLength) {
-				isValid = true;
-			}
-		}
-		return isValid;
+	/** Reads the validation rules of licenses, LOAs and ECCNs from the plugin
+	 * properties. */
+	private void loadValidators() {
+		loaValidator = ValueValidator.load(PluginConstants.pluginProps, "loa",
+				7);
+		licenseValidator = ValueValidator.load(PluginConstants.pluginProps,
+				"license", 9);
+		eccnValidator = ValueValidator.load(PluginConstants.pluginProps,
+				"eccn", 10);
+		dictionaryLoaRules = "true".equalsIgnoreCase(PluginConstants.pluginProps
+				.getProperty("dictionary_loa_rules", "false").trim());
 	}
 
 	private boolean validateLoa(String loa) {
-		boolean isValid = false;
-		isValid = validate(loa, "loa_length", 7);
-		return isValid;
+		return loaValidator.isValid(loa);
 	}
 
 	private boolean validateLicense(String license) {
-		boolean isValid = false;
-		isValid = validate(license, "license_length", 9);
-		return isValid;
+		return licenseValidator.isValid(license);
 	}
 
 	private boolean validateEccn(String eccn) {
-		boolean isValid = false;
-		isValid = validate(eccn, "eccn_length", 10);
-		return isValid;
-	}
-
-	private List<String> getPipeSeparatedStrings(String sourceString) {
-		List<String> separatedString = new ArrayList<String>();
-		if (sourceString != null) {
-			String[] stringElements = sourceString.split("\\|");
-			for (String stringElement : stringElements) {
-				if (stringElement != null && !stringElement.isEmpty()) {
-					separatedString.add(stringElement.trim());
-				}
-			}
-		}
-		return separatedString;
+		return eccnValidator.isValid(eccn);
 	}
 
-	private List<HashMap<String, String>> getDictionaryData() {
+	private CompactDictionary getDictionaryData() {
 		LOG.info("DHBP : " + "Getting data from Dictionary Database.");
-		boolean isError = false;
-		boolean errorFlag = false;
 		int totalCount = 0;
 		int validCount = 0;
 		int licLoaCount = 0;
-		StringBuilder logContent = new StringBuilder();
+		int recordCount = 0;
 		DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
 		Date date = new Date();
-		logContent.append("Last update time : " + dateFormat.format(date)
-				+ "\r\n");
-		List<HashMap<String, String>> userData = DictionaryData.getUserData();
-		List<HashMap<String, String>> dictionaryData = new ArrayList<HashMap<String, String>>();
-		LOG.debug("DHBP : " + "Dictionary DB contains "
-				+ String.valueOf(userData.size()) + " records.");
-		if (userData != null) {
-			String userIdFieldName = PluginConstants.commonProps
-					.getProperty("userid_dict_field");
-			if (userIdFieldName == null || userIdFieldName.isEmpty()) {
-				LOG.error("DHBP : "
-						+ "User ID field name is NULL or empty. Check Common_HB.properties file.");
-			}
-			String loaFieldName = PluginConstants.commonProps
-					.getProperty("loa_dict_field");
-			if (loaFieldName == null || loaFieldName.isEmpty()) {
-				LOG.error("DHBP : "
-						+ "LOA field name is NULL or empty. Check Common_HB.properties file.");
-			}
-			String licenseFieldName = PluginConstants.commonProps
-					.getProperty("license_dict_field");
-			if (licenseFieldName == null || licenseFieldName.isEmpty()) {
-				LOG.error("DHBP : "
-						+ "License field name is NULL or empty. Check Common_HB.properties file.");
-			}
-			for (final HashMap<String, String> user : userData) {
-				isError = false;
-				if (LOG.isDebugEnabled()) {
-					LOG.info("DHBP : " + "Dictionary Record : "
-							+ user.toString());
-				}
-				String userId = user.get(userIdFieldName);
-				String loa = user.get(loaFieldName);
-				String license = user.get(licenseFieldName);
-				if (LOG.isDebugEnabled()) {
-					LOG.debug("DHBP : " + "Username 	: " + userId);
-					LOG.debug("DHBP : " + "LOA 		: " + loa);
-					LOG.debug("DHBP : " + "License 	: " + license);
-				}
-				if (userId == null || userId.isEmpty()) {
-					logContent.append("Enrollment : " + user.get("Enrollment")
-							+ " - " + userIdFieldName
-							+ " is NULL or empty. Current Record is : "
-							+ user.toString() + "\r\n");
-					isError = true;
-					LOG.error("DHBP : " + "Enrollment : "
-							+ user.get("Enrollment") + " - " + userIdFieldName
-							+ " is NULL or empty. Current Record is : "
-							+ user.toString());
-				}
-				if (!((loa == null || loa.isEmpty()) && (license == null || license
-						.isEmpty()))) {
-					validCount++;
-				}
-				if (license != null && !license.isEmpty()) {
-					List<String> licenses = getPipeSeparatedStrings(license);
-					for (String licenseElement : licenses) {
-						if (validateLicense(licenseElement)) {
-							HashMap<String, String> dictionaryRecord = new HashMap<String, String>();
-							dictionaryRecord.put("UID", userId);
-							dictionaryRecord.put("LICENSES", licenseElement);
-							dictionaryData.add(dictionaryRecord);
-						} else {
-							logContent.append("Enrollment : "
-									+ user.get("Enrollment")
-									+ " - Invalid License : " + licenseElement
-									+ "\r\n");
-							isError = true;
-							LOG.error("DHBP : " + "Enrollment : "
-									+ user.get("Enrollment")
-									+ " - Invalid License : " + licenseElement);
-						}
-					}
-				}
-				if (loa != null && !loa.isEmpty()) {
-					List<String> loas = getPipeSeparatedStrings(loa);
-					for (String loaElement : loas) {
-						if (validateLicense(loaElement)) {
-							HashMap<String, String> dictionaryRecord = new HashMap<String, String>();
-							dictionaryRecord.put("UID", userId);
-							dictionaryRecord.put("LOAS", loaElement);
-							dictionaryData.add(dictionaryRecord);
-						} else {
-							logContent
-									.append("Enrollment : "
-											+ user.get("Enrollment")
-											+ " - Invalid LOA : " + loaElement
-											+ "\r\n");
-							isError = true;
-							LOG.error("DHBP : " + "Enrollment : "
-									+ user.get("Enrollment")
-									+ " - Invalid LOA : " + loaElement);
-						}
-					}
-				}
-				if (isError) {
-					errorFlag = true;
-				} else {
-					if (!((loa == null || loa.isEmpty()) && (license == null || license
-							.isEmpty()))) {
-						licLoaCount++;
-					}
-				}
-				totalCount++;
-			}
+		List<EnrollmentUsers> enrollments = DictionaryData
+				.getEnrollmentUsers();
+		if (enrollments == null) {
+			LOG.error("DHBP : "
+					+ "Dictionary DB could not be read. Keeping the current data.");
+			return null;
 		}
-		if (!errorFlag) {
-			logContent.append("No error found.");
+		String userIdFieldName = PluginConstants.commonProps
+				.getProperty("userid_dict_field");
+		if (userIdFieldName == null || userIdFieldName.isEmpty()) {
+			LOG.error("DHBP : "
+					+ "User ID field name is NULL or empty. Check Common_HB.properties file.");
 		}
-		String dictDataErrorLogFilePath = PluginConstants.installLocation
-				+ PluginConstants.LOGROOT + "/"
-				+ PluginConstants.dictDataErrorLog;
-		LOG.info("DHBP : " + "Writing errors to log file at : "
-				+ dictDataErrorLogFilePath);
-		try {
-			File file = new File(dictDataErrorLogFilePath);
-			if (!file.exists()) {
-				file.createNewFile();
-			}
-			FileWriter fw = new FileWriter(file.getAbsoluteFile());
-			BufferedWriter bw = new BufferedWriter(fw);
-			bw.write(logContent.toString());
-			bw.close();
-		} catch (Exception e) {
+		String loaFieldName = PluginConstants.commonProps
+				.getProperty("loa_dict_field");
+		if (loaFieldName == null || loaFieldName.isEmpty()) {
 			LOG.error("DHBP : "
-					+ "Error writing to Doctionary DB log file at : "
-					+ dictDataErrorLogFilePath + ".");
+					+ "LOA field name is NULL or empty. Check Common_HB.properties file.");
+		}
+		String licenseFieldName = PluginConstants.commonProps
+				.getProperty("license_dict_field");
+		if (licenseFieldName == null || licenseFieldName.isEmpty()) {
+			LOG.error("DHBP : "
+					+ "License field name is NULL or empty. Check Common_HB.properties file.");
+		}
+		ErrorReport report = openErrorReport(PluginConstants.dictDataErrorLog);
+		report.info("Last update time : " + dateFormat.format(date));
+		/* Enrollments whose records did not change are not validated again,
+		 * their errors are reported from the last validation. */
+		final Map<String, EnrollmentData> validated = new HashMap<String, EnrollmentData>();
+		CompactDictionary.Builder dictionaryData = new CompactDictionary.Builder();
+		int reused = 0;
+		for (EnrollmentUsers enrollment : enrollments) {
+			EnrollmentData part = enrollmentData.get(enrollment
+					.getDomainName());
+			final boolean isReused = part != null
+					&& part.version == enrollment.getVersion();
+			if (isReused) {
+				reused++;
+			} else {
+				LOG.debug("DHBP : " + "Enrollment "
+						+ enrollment.getDomainName() + " contains "
+						+ String.valueOf(enrollment.getRecords().size())
+						+ " records.");
+				part = validateEnrollment(enrollment, userIdFieldName,
+						loaFieldName, licenseFieldName);
+			}
+			validated.put(enrollment.getDomainName(), part);
+			dictionaryData.addAll(part.rows);
+			for (ErrorReport.Entry error : part.errors) {
+				report.add(error, !isReused);
+			}
+			totalCount += part.totalCount;
+			validCount += part.validCount;
+			licLoaCount += part.licLoaCount;
+			recordCount += part.recordCount;
 		}
+		enrollmentData = validated;
+		LOG.info("DHBP : " + "Validated " + (enrollments.size() - reused)
+				+ " changed enrollments, reused " + reused + ".");
+		report.close();
+		CompactDictionary dictionary = dictionaryData.build();
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("DHBP : " + "Dictionary Database contains : "
-					+ dictionaryData.toString());
+					+ dictionary.toRecords().toString());
 		}
 		LOG.info("DHBP : " + "Dictionary Database contains : "
-				+ String.valueOf(dictionaryData.size()) + " valid records.");
+				+ String.valueOf(recordCount) + " valid records.");
 		LOG.info("DHBP : " + "[Dictionary Database] Sending "
 				+ String.valueOf(licLoaCount) + "/"
 				+ String.valueOf(validCount) + " ("
 				+ String.valueOf(totalCount) + ") records.");
 		LOG.info("DHBP : " + "Got Dictionary Data.");
-		return dictionaryData;
+		return dictionary;
 	}
 
-	private void writeDictionaryData(
-			List<HashMap<String, String>> dictionaryData) {
-		String dictDataFilePath = PluginConstants.installLocation
-				+ PluginConstants.CCROOT + PluginConstants.JARFOLDER
-				+ PluginConstants.APPFOLDER + PluginConstants.DATAFOLDER
-				+ PluginConstants.dictDataFileName;
-		LOG.info("DHBP : " + "Writing Dictionary data to file - "
-				+ dictDataFilePath);
-		writeSerializableDataToFile(dictionaryData, dictDataFilePath);
-		LOG.info("DHBP : " + "Wrote data to file.");
+	/** Validates the user records of one enrollment and collects its
+	 * licenses and LOAs.
+	 * 
+	 * @param enrollment user records of the enrollment.
+	 * @return the licenses and LOAs, errors and counts of the enrollment. */
+	private EnrollmentData validateEnrollment(EnrollmentUsers enrollment,
+			String userIdFieldName, String loaFieldName,
+			String licenseFieldName) {
+		final EnrollmentData part = new EnrollmentData(enrollment.getVersion());
+		final CompactDictionary.Builder dictionaryData = new CompactDictionary.Builder();
+		boolean isError = false;
+		final String location = "Enrollment : " + enrollment.getDomainName();
+		for (final Object[] user : enrollment.getRecords()) {
+			isError = false;
+			if (LOG.isDebugEnabled()) {
+				LOG.info("DHBP : " + "Dictionary Record : "
+						+ enrollment.toString(user));
+			}
+			String userId = enrollment.getValue(user, userIdFieldName);
+			List<String> loas = enrollment.getValues(user, loaFieldName);
+			List<String> licenses = enrollment.getValues(user,
+					licenseFieldName);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("DHBP : " + "Username 	: " + userId);
+				LOG.debug("DHBP : " + "LOA 		: " + loas);
+				LOG.debug("DHBP : " + "License 	: " + licenses);
+			}
+			if (userId == null || userId.isEmpty()) {
+				part.errors.add(new ErrorReport.Entry("MISSING_USER_ID",
+						location, userIdFieldName
+								+ " is NULL or empty. Current Record is : "
+								+ enrollment.toString(user)));
+				isError = true;
+			}
+			if (!(loas.isEmpty() && licenses.isEmpty())) {
+				part.validCount++;
+			}
+			if (!licenses.isEmpty()) {
+				for (String licenseElement : licenses) {
+					if (validateLicense(licenseElement)) {
+						dictionaryData.addLicense(userId, licenseElement);
+						part.recordCount++;
+					} else {
+						part.errors.add(new ErrorReport.Entry(
+								"INVALID_LICENSE", location,
+								"Invalid License : " + licenseElement));
+						isError = true;
+					}
+				}
+			}
+			if (!loas.isEmpty()) {
+				for (String loaElement : loas) {
+					if (dictionaryLoaRules ? validateLoa(loaElement)
+							: validateLicense(loaElement)) {
+						dictionaryData.addLoa(userId, loaElement);
+						part.recordCount++;
+					} else {
+						part.errors.add(new ErrorReport.Entry("INVALID_LOA",
+								location, "Invalid LOA : " + loaElement));
+						isError = true;
+					}
+				}
+			}
+			if (!isError) {
+				if (!(loas.isEmpty() && licenses.isEmpty())) {
+					part.licLoaCount++;
+				}
+			}
+			part.totalCount++;
+		}
+		part.rows = dictionaryData.build();
+		return part;
+	}
+
+	/** Parses a date in the CSV format, remembering the result.
+	 * 
+	 * @param text date as found in the CSV.
+	 * @param sourceDf format of the dates in the CSV.
+	 * @param parsedDates dates parsed so far.
+	 * @return the date, or null if it does not parse. */
+	private Date parseDate(String text, DateFormat sourceDf,
+			Map<String, Date> parsedDates) {
+		if (parsedDates.containsKey(text)) {
+			return parsedDates.get(text);
+		}
+		Date parsed = null;
+		try {
+			parsed = sourceDf.parse(text);
+		} catch (ParseException e) {
+			// Reported by the caller.
+		}
+		if (parsedDates.size() >= MAX_PARSED_DATES) {
+			parsedDates.clear();
+		}
+		parsedDates.put(text, parsed);
+		return parsed;
+	}
+
+	/** Gets the instance of a value shared by all records.
+	 * 
+	 * @param value value to be shared.
+	 * @param values values shared so far.
+	 * @return the shared instance. */
+	private String intern(String value, Map<String, String> values) {
+		String shared = values.get(value);
+		if (shared == null) {
+			values.put(value, value);
+			shared = value;
+		}
+		return shared;
+	}
+
+	private String getDictDataFilePath() {
+		return PluginConstants.installLocation + PluginConstants.CCROOT
+				+ PluginConstants.JARFOLDER + PluginConstants.APPFOLDER
+				+ PluginConstants.DATAFOLDER + PluginConstants.dictDataFileName;
+	}
+
+	/** Starts writing an error log file, replacing the file once the report
+	 * of the previous build has been written to it.
+	 * 
+	 * @param fileName name of the file in the log folder.
+	 * @return the report to write the errors to. */
+	private ErrorReport openErrorReport(String fileName) {
+		final ErrorReport previous = errorReports.get(fileName);
+		if (previous != null) {
+			previous.awaitWritten();
+		}
+		String errorLogFilePath = PluginConstants.installLocation
+				+ PluginConstants.LOGROOT + "/" + fileName;
+		LOG.info("DHBP : " + "Writing errors to log file at : "
+				+ errorLogFilePath);
+		final ErrorReport report = new ErrorReport(new File(errorLogFilePath),
+				(int) PropertyLoader.getLongProperty(
+						PluginConstants.pluginProps,
+						"error_report_category_limit", 1000),
+				(int) PropertyLoader.getLongProperty(
+						PluginConstants.pluginProps, "error_report_queue_size",
+						10000));
+		errorReports.put(fileName, report);
+		return report;
+	}
+
+	private String getLoaEccnFilePath() {
+		return PluginConstants.installLocation + PluginConstants.CCROOT
+				+ PluginConstants.JARFOLDER + PluginConstants.APPFOLDER
+				+ PluginConstants.DATAFOLDER + PluginConstants.loaEccnFileName;
 	}
 
 	private List<HashMap<String, String>> getLicLoaEccnData() {
 		LOG.info("DHBP : " + "Getting data from LIC-LOA-ECCN CSV files.");
 		int totalCount = 0;
 		int validCount = 0;
-		StringBuilder logContent = new StringBuilder();
 		DateFormat dateFormat = new SimpleDateFormat("MM/MM/yyyy HH:mm:ss");
 		Date date = new Date();
-		logContent.append("Last update time : " + dateFormat.format(date)
-				+ "\r\n");
+		ErrorReport report = openErrorReport(PluginConstants.loaEccnCsvErrorLog);
+		report.info("Last update time : " + dateFormat.format(date));
 		String licLoaEccnFile = PluginConstants.pluginProps
 				.getProperty("csv_file_path");
-		logContent
-				.append("CSV file is located at : " + licLoaEccnFile + "\r\n");
+		report.info("CSV file is located at : " + licLoaEccnFile);
 		LOG.info("DHBP : " + "CSV file is located at : " + licLoaEccnFile + ".");
 		List<HashMap<String, String>> licLoaEccnData = new ArrayList<HashMap<String, String>>();
-		List<String> licLoaEccnCombo = new ArrayList<String>();
-		BufferedReader br = null;
-		String line = null;
-		String csvSplitBy = ",";
+		/* Keys of the records seen so far, LICENSE, LOA and ECCN joined by a
+		 * character which can not occur in the CSV. */
+		Set<String> licLoaEccnCombo = new HashSet<String>();
+		/* The same few dates occur on most lines, so each distinct date is
+		 * only parsed once. A null value marks a date which does not parse. */
+		Map<String, Date> parsedDates = new HashMap<String, Date>();
+		/* Licenses, LOAs, ECCNs and dates repeat across lines, the records
+		 * share one instance of each distinct value. */
+		Map<String, String> values = new HashMap<String, String>();
+		DateFormat sourceDf = new SimpleDateFormat("MM/dd/yyyy");
+		sourceDf.setLenient(false);
+		DateFormat targetDf = new SimpleDateFormat("yyyy-MM-dd");
+		targetDf.setLenient(false);
+		CsvReader csvReader = null;
+		List<String> items = null;
 		boolean isHeader = true;
 		boolean isError = false;
-		boolean errorFlag = false;
 		int lineNumber = 0;
 		if (licLoaEccnFile == null || licLoaEccnFile.isEmpty()) {
 			LOG.error("DHBP : " + "CSV file name not defined or empty.");
 		} else {
 			try {
-				br = new BufferedReader(new FileReader(licLoaEccnFile));
-				while ((line = br.readLine()) != null) {
+				csvReader = new CsvReader(new FileReader(licLoaEccnFile));
+				while ((items = csvReader.readRecord()) != null) {
 					isError = false;
 					if (LOG.isDebugEnabled()) {
 						LOG.debug("DHBP : " + "LIC LOA ECCN Record (RAW) : "
-								+ line);
+								+ items);
 					}
-					lineNumber++;
+					lineNumber = csvReader.getLineNumber();
 					if (isHeader) {
 						isHeader = false;
 						continue;
 					}
-					String[] items = line.split(csvSplitBy);
-					if (items.length != 5) {
-						logContent.append("Line " + String.valueOf(lineNumber)
-								+ " : Missing columns.\r\n");
+					if (items.size() != 5) {
+						report.error("MISSING_COLUMNS", "Line " + lineNumber,
+								"Missing columns.");
 						isError = true;
-						LOG.error("DHBP : " + "Line "
-								+ String.valueOf(lineNumber)
-								+ " : Missing columns.");
+						if (items.size() < 5) {
+							totalCount++;
+							continue;
+						}
 					}
-					String license = items[0].trim();
-					String loa = items[1].trim();
-					String eccn = items[2].trim();
-					String effectiveDate = items[3].trim();
-					String expiryDate = items[4].trim();
-					if (license != null && !license.isEmpty()) {
+					String license = items.get(0).trim();
+					String loa = items.get(1).trim();
+					String eccn = items.get(2).trim();
+					String effectiveDate = items.get(3).trim();
+					String expiryDate = items.get(4).trim();
+					if (!license.isEmpty()) {
 						if (!validateLicense(license)) {
-							logContent.append("Line "
-									+ String.valueOf(lineNumber)
-									+ " : Invalid License.\r\n");
+							report.error("INVALID_LICENSE", "Line " + lineNumber,
+									"Invalid License.");
 							isError = true;
-							LOG.error("DHBP : " + "Line "
-									+ String.valueOf(lineNumber)
-									+ " : Invalid License.");
 						}
 					}
-					if (loa != null && !loa.isEmpty()) {
+					if (!loa.isEmpty()) {
 						if (!validateLoa(loa)) {
-							logContent.append("Line "
-									+ String.valueOf(lineNumber)
-									+ " : Invalid LOA.\r\n");
+							report.error("INVALID_LOA", "Line " + lineNumber,
+									"Invalid LOA.");
 							isError = true;
-							LOG.error("DHBP : " + "Line "
-									+ String.valueOf(lineNumber)
-									+ " : Invalid LOA.");
 						}
 					}
-					if ((license == null || license.isEmpty())
-							&& (loa == null || loa.isEmpty())) {
-						logContent.append("Line " + String.valueOf(lineNumber)
-								+ " : License & LOA are empty or NULL.\r\n");
+					if (license.isEmpty() && loa.isEmpty()) {
+						report.error("EMPTY_LICENSE_LOA", "Line " + lineNumber,
+								"License & LOA are empty or NULL.");
 						isError = true;
-						LOG.error("DHBP : " + "Line "
-								+ String.valueOf(lineNumber)
-								+ " : License & LOA are empty or NULL.");
 					} else {
-						if (license.isEmpty() || license == null) {
+						if (license.isEmpty()) {
 							license = "NULL";
 						}
-						if (loa.isEmpty() || loa == null) {
+						if (loa.isEmpty()) {
 							loa = "NULL";
 						}
 					}
@@ -503,155 +663,75 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 						LOG.debug("DHBP : " + "EXPIRY	: " + expiryDate);
 					}
 					if (!validateEccn(eccn)) {
-						logContent.append("Line " + String.valueOf(lineNumber)
-								+ " : Invalid ECCN.\r\n");
+						report.error("INVALID_ECCN", "Line " + lineNumber,
+								"Invalid ECCN.");
 						isError = true;
-						LOG.error("DHBP : " + "Line "
-								+ String.valueOf(lineNumber)
-								+ " : Invalid ECCN.");
 					}
-					if (effectiveDate == null || effectiveDate.isEmpty()) {
-						logContent.append("Line " + String.valueOf(lineNumber)
-								+ " : Effective Date NULL or empty.\r\n");
+					if (effectiveDate.isEmpty()) {
+						report.error("EMPTY_EFFECTIVE_DATE", "Line " + lineNumber,
+								"Effective Date NULL or empty.");
 						isError = true;
-						LOG.error("DHBP : " + "Line "
-								+ String.valueOf(lineNumber)
-								+ " : Effective Date NULL or empty.");
 					}
-					if (expiryDate == null || expiryDate.isEmpty()) {
-						logContent.append("Line " + String.valueOf(lineNumber)
-								+ " : Expiry Date NULL or empty.\r\n");
+					if (expiryDate.isEmpty()) {
+						report.error("EMPTY_EXPIRY_DATE", "Line " + lineNumber,
+								"Expiry Date NULL or empty.");
 						isError = true;
-						LOG.error("DHBP : " + "Line "
-								+ String.valueOf(lineNumber)
-								+ " : Expiry Date NULL or empty.");
 					}
-					if (licLoaEccnCombo.contains(license.concat(loa).concat(
-							eccn))) {
-						logContent.append("Line " + String.valueOf(lineNumber)
-								+ " : Duplicate record.\r\n");
+					if (!licLoaEccnCombo.add(license + '\u0000' + loa
+							+ '\u0000' + eccn)) {
+						report.error("DUPLICATE_RECORD", "Line " + lineNumber,
+								"Duplicate record.");
 						isError = true;
-						LOG.error("DHBP : " + "Line "
-								+ String.valueOf(lineNumber)
-								+ " : Duplicate record.");
-					} else {
-						licLoaEccnCombo.add(license.concat(loa).concat(eccn));
 					}
-					DateFormat sourceDf = new SimpleDateFormat("MM/dd/yyyy");
-					sourceDf.setLenient(false);
-					DateFormat targetDf = new SimpleDateFormat("yyyy-MM-dd");
-					targetDf.setLenient(false);
-					String effectiveDateHsql = "";
-					String expiryDateHsql = "";
-					try {
-						Date tempDate = sourceDf.parse(effectiveDate);
-						effectiveDateHsql = targetDf.format(tempDate);
-						if (effectiveDateHsql.isEmpty()) {
-							logContent
-									.append("Line "
-											+ String.valueOf(lineNumber)
-											+ " : Error parsing Effective Date. Ensure date format is MM/dd/yyyy.\r\n");
-							isError = true;
-							LOG.error("DHBP : "
-									+ "Line "
-									+ String.valueOf(lineNumber)
-									+ " : Error parsing Effective Date. Ensure date format is MM/dd/yyyy.");
-						}
-					} catch (Exception e) {
-						logContent
-								.append("Line "
-										+ String.valueOf(lineNumber)
-										+ " : Error parsing Effective Date. Ensure date format is MM/dd/yyyy.\r\n");
+					Date startDate = parseDate(effectiveDate, sourceDf,
+							parsedDates);
+					Date endDate = parseDate(expiryDate, sourceDf, parsedDates);
+					if (startDate == null) {
+						report.error("INVALID_EFFECTIVE_DATE", "Line " + lineNumber,
+								"Error parsing Effective Date. Ensure date format is MM/dd/yyyy.");
 						isError = true;
-						LOG.error("DHBP : "
-								+ "Line "
-								+ String.valueOf(lineNumber)
-								+ " : Error parsing Effective Date. Ensure date format is MM/dd/yyyy.");
 					}
-					try {
-						Date tempDate = sourceDf.parse(expiryDate);
-						expiryDateHsql = targetDf.format(tempDate);
-						if (expiryDateHsql.isEmpty()) {
-							logContent
-									.append("Line "
-											+ String.valueOf(lineNumber)
-											+ " : Error parsing Expiry Date. Ensure date format is MM/dd/yyyy.\r\n");
-							isError = true;
-							LOG.error("DHBP : "
-									+ "Line "
-									+ String.valueOf(lineNumber)
-									+ " : Error parsing Expiry Date. Ensure date format is MM/dd/yyyy.");
-						}
-					} catch (Exception e) {
-						logContent
-								.append("Line "
-										+ String.valueOf(lineNumber)
-										+ " : Error parsing Expiry Date. Ensure date format is MM/dd/yyyy.\r\n");
+					if (endDate == null) {
+						report.error("INVALID_EXPIRY_DATE", "Line " + lineNumber,
+								"Error parsing Expiry Date. Ensure date format is MM/dd/yyyy.");
 						isError = true;
-						LOG.error("DHBP : "
-								+ "Line "
-								+ String.valueOf(lineNumber)
-								+ " : Error parsing Expiry Date. Ensure date format is MM/dd/yyyy.");
 					}
-					try {
-						Date startDate = sourceDf.parse(effectiveDate);
-						Date endDate = sourceDf.parse(expiryDate);
-						if (startDate.after(endDate)) {
-							logContent
-									.append("Line "
-											+ String.valueOf(lineNumber)
-											+ " : Effective date is after Expiry date.\r\n");
-							isError = true;
-							LOG.error("DHBP : " + "Line "
-									+ String.valueOf(lineNumber)
-									+ " : Effective date is after Expiry date");
-						}
-					} catch (Exception e) {
-						// Do nothing. Incorrect date format handled above.
+					if (startDate != null && endDate != null
+							&& startDate.after(endDate)) {
+						report.error("DATES_REVERSED", "Line " + lineNumber,
+								"Effective date is after Expiry date.");
+						isError = true;
 					}
-					if (isError) {
-						errorFlag = true;
-					} else {
+					if (!isError) {
 						validCount++;
 					}
 					totalCount++;
 					if (!isError) {
 						HashMap<String, String> licLoaEccnRecord = new HashMap<String, String>();
-						licLoaEccnRecord.put("LICENSE", license);
-						licLoaEccnRecord.put("LOA", loa);
-						licLoaEccnRecord.put("ECCN", eccn);
-						licLoaEccnRecord.put("EFFECTIVE", effectiveDateHsql);
-						licLoaEccnRecord.put("EXPIRY", expiryDateHsql);
+						licLoaEccnRecord.put("LICENSE", intern(license, values));
+						licLoaEccnRecord.put("LOA", intern(loa, values));
+						licLoaEccnRecord.put("ECCN", intern(eccn, values));
+						licLoaEccnRecord.put("EFFECTIVE",
+								intern(targetDf.format(startDate), values));
+						licLoaEccnRecord.put("EXPIRY",
+								intern(targetDf.format(endDate), values));
 						licLoaEccnData.add(licLoaEccnRecord);
 					}
 				}
 			} catch (Exception e) {
 				LOG.error("DHBP : " + "Unable to read LIC-LOA-ECCN CSV file",e);
 				
+			} finally {
+				if (csvReader != null) {
+					try {
+						csvReader.close();
+					} catch (IOException e) {
+						LOG.error("DHBP : " + "Unable to close LIC-LOA-ECCN CSV file", e);
+					}
+				}
 			}
 		}
-		if (!errorFlag) {
-			logContent.append("No error found.");
-		}
-		String licLoaEccnErrorLogFilePath = PluginConstants.installLocation
-				+ PluginConstants.LOGROOT + "/"
-				+ PluginConstants.loaEccnCsvErrorLog;
-		LOG.info("DHBP : " + "Writing errors to log file at : "
-				+ licLoaEccnErrorLogFilePath);
-		try {
-			File file = new File(licLoaEccnErrorLogFilePath);
-			if (!file.exists()) {
-				file.createNewFile();
-			}
-			FileWriter fw = new FileWriter(file.getAbsoluteFile());
-			BufferedWriter bw = new BufferedWriter(fw);
-			bw.write(logContent.toString());
-			bw.close();
-		} catch (Exception e) {
-			LOG.error("DHBP : "
-					+ "Error writing to Doctionary DB log file at : "
-					+ licLoaEccnErrorLogFilePath + ".");
-		}
+		report.close();
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("DHBP : " + "LIC-LOA-ECCN CSV file contains : "
 					+ licLoaEccnData.toString());
@@ -665,52 +745,17 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 		return licLoaEccnData;
 	}
 
-	private void writeLicLoaEccnData(
-			List<HashMap<String, String>> licLoaEccnData) {
-		String licLoaEccnDataFilePath = PluginConstants.installLocation
-				+ PluginConstants.CCROOT + PluginConstants.JARFOLDER
-				+ PluginConstants.APPFOLDER + PluginConstants.DATAFOLDER
-				+ PluginConstants.loaEccnFileName;
-		LOG.info("DHBP : " + "Writing LIC-LOA-ECCN data to file - "
-				+ licLoaEccnDataFilePath);
-		writeSerializableDataToFile(licLoaEccnData, licLoaEccnDataFilePath);
-		LOG.info("DHBP : " + "Wrote data to file.");
-	}
-
-	private byte[] zipFiles(List<String> files) {
-		LOG.info("DHBP : " + "Creating zip file.");
-		String zipFile = PluginConstants.installLocation
-				+ PluginConstants.CCROOT + PluginConstants.JARFOLDER
-				+ PluginConstants.APPFOLDER + PluginConstants.DATAFOLDER
-				+ PluginConstants.compressedFileName;
-		final List<String> zipEntries = files;
-		Utils.compressFiles(zipEntries, zipFile);
-		byte[] bytes = null;
-		try {
-			final File file = new File(zipFile);
-			final InputStream is = new FileInputStream(zipFile);
-			int offset = 0;
-			int numRead = 0;
-			bytes = new byte[(int) file.length()];
-			while (offset < bytes.length
-					&& (numRead = is.read(bytes, offset, bytes.length - offset)) >= 0) {
-				offset += numRead;
-			}
-			is.close();
-			file.delete();
-		} catch (IOException e) {
-			LOG.error("DHBP : " + "IO Exception in creating zip file."
-					+ e.getMessage());
-		}
-		return bytes;
-	}
-
 	/** Prepares the data to be sent to the Policy Controller based on the
-	 * request recieved.
+	 * request recieved. Requests which carry data generations are answered by
+	 * comparing generations, older requests which only carry a date go
+	 * through the date based decision.
 	 * 
 	 * @param request Contains the request from the Policy Controller.
 	 * @return HashMap containing data to be updated on the client side. */
 	private Serializable prepareData(Map<String, Object> request) {
+		if (getProtocolVersion(request) >= PluginConstants.PROTOCOL_GENERATIONS) {
+			return prepareGenerationData(request);
+		}
 		Date pcRequestTime = null;
 		if (request.containsKey("Date")) {
 			pcRequestTime = new Timestamp(
@@ -719,52 +764,22 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 			pcRequestTime = new Timestamp(0);
 			LOG.error("DHBP : " + "PC request time is NULL or empty.");
 		}
-		String licLoaEccnFile = PluginConstants.pluginProps
-				.getProperty("csv_file_path");
-		LOG.info("DHBP : " + "LOA ECCN CSV File Path : " + licLoaEccnFile);
-		Date loaDbUpdateTime = null;
-		if (licLoaEccnFile != null && !licLoaEccnFile.isEmpty()) {
-			if (new File(licLoaEccnFile).exists()) {
-				loaDbUpdateTime = new Timestamp(
-						new File(licLoaEccnFile).lastModified());
-			} else {
-				loaDbUpdateTime = new Timestamp(0);
-				LOG.error("DHBP : "
-						+ "LIC-LOA-CSV file modified time doesn't exist.");
-			}
-		} else {
-			loaDbUpdateTime = new Timestamp(0);
-			LOG.error("DHBP : "
-					+ "Error in getting LIC-LOA-CSV file modified time.");
-		}
-		Date dictUpdateTime = null;
-		dictUpdateTime = DictionaryData.getLastModifiedDate();
-		if (dictUpdateTime == null) {
-			dictUpdateTime = new Timestamp(0);
-			LOG.error("DHBP : " + "Error in getting Dictionary DB update time.");
-		}
-		String dictDataFilePath = PluginConstants.installLocation
-				+ PluginConstants.CCROOT + PluginConstants.JARFOLDER
-				+ PluginConstants.APPFOLDER + PluginConstants.DATAFOLDER
-				+ PluginConstants.dictDataFileName;
-		String loaEccnFilePath = PluginConstants.installLocation
-				+ PluginConstants.CCROOT + PluginConstants.JARFOLDER
-				+ PluginConstants.APPFOLDER + PluginConstants.DATAFOLDER
-				+ PluginConstants.loaEccnFileName;
-		Date loaEccnModifiedTime = null;
-		Date dictDataModifiedTime = null;
-		if (new File(dictDataFilePath).exists()) {
-			dictDataModifiedTime = new Timestamp(
-					new File(dictDataFilePath).lastModified());
-		} else {
-			dictDataModifiedTime = new Timestamp(0);
-		}
-		if (new File(loaEccnFilePath).exists()) {
-			loaEccnModifiedTime = new Timestamp(
-					new File(loaEccnFilePath).lastModified());
-		} else {
-			loaEccnModifiedTime = new Timestamp(0);
-		}
+		/* Only the published snapshots and the source versions last seen by
+		 * the snapshot builder are used, the sources are never queried here.
+		 * A rebuild which yields the same content keeps the build time of the
+		 * snapshot, so a newer source version does not mean that a newer file
+		 * is on its way. A published file newer than the data held is sent
+		 * right away. */
+		final DataSnapshot<CompactDictionary> dict = getDictSnapshot();
+		final DataSnapshot<Map<String, String>> loaEccn = getLoaEccnSnapshot();
+		Date loaDbUpdateTime = new Timestamp(Math.max(
+				observedLoaEccnSourceTime, 0));
+		Date dictUpdateTime = new Timestamp(Math.max(observedDictSourceTime,
+				0));
+		Date dictDataModifiedTime = new Timestamp(dict == null ? 0 : dict
+				.getBuildTime());
+		Date loaEccnModifiedTime = new Timestamp(loaEccn == null ? 0 : loaEccn
+				.getBuildTime());
 		LOG.info("DHBP : " + "The Policy Controller request time is     : "
 				+ pcRequestTime.toString());
 		LOG.info("DHBP : " + "The loa-eccn DB last update time is       : "
@@ -777,8 +792,6 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 				+ loaEccnModifiedTime.toString());
 		boolean returnDictFile = false;
 		boolean returnLoaFile = false;
-		boolean fetchDictData = false;
-		boolean fetchLoaData = false;
 		LOG.info("DHBP : " + "Making decision for LOA ECCN CSV...");
 		final decision loaDecision = makeDecision(pcRequestTime,
 				loaEccnModifiedTime, loaDbUpdateTime);
@@ -786,10 +799,16 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 			LOG.info("DHBP : " + "Decision for LOA ECCN CSV is SEND FILE.");
 			returnLoaFile = true;
 		} else if (loaDecision == decision.UPDATEFILEANDSEND) {
-			LOG.info("DHBP : "
-					+ "Decision for LOA ECCN CSV is UPDATE FILE  AND SEND FILE.");
-			fetchLoaData = true;
-			returnLoaFile = true;
+			if (loaEccn != null && pcRequestTime.before(loaEccnModifiedTime)) {
+				LOG.info("DHBP : "
+						+ "Decision for LOA ECCN CSV is UPDATE FILE  AND SEND FILE. "
+						+ "Sending the published file, which is newer than the data held.");
+				returnLoaFile = true;
+			} else {
+				LOG.info("DHBP : "
+						+ "Decision for LOA ECCN CSV is UPDATE FILE  AND SEND FILE. "
+						+ "The snapshot builder is updating the file.");
+			}
 		} else {
 			LOG.info("DHBP : " + "Decision for LOA ECCN CSV is NONE.");
 		}
@@ -800,91 +819,692 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 			LOG.info("DHBP : " + "Decision for Dictionary DB is SEND FILE.");
 			returnDictFile = true;
 		} else if (dictDecision == decision.UPDATEFILEANDSEND) {
-			LOG.info("DHBP : "
-					+ "Decision for Dictionary DB is UPDATE FILE  AND SEND FILE.");
-			fetchDictData = true;
-			returnDictFile = true;
+			if (dict != null && pcRequestTime.before(dictDataModifiedTime)) {
+				LOG.info("DHBP : "
+						+ "Decision for Dictionary DB is UPDATE FILE  AND SEND FILE. "
+						+ "Sending the published file, which is newer than the data held.");
+				returnDictFile = true;
+			} else {
+				LOG.info("DHBP : "
+						+ "Decision for Dictionary DB is UPDATE FILE  AND SEND FILE. "
+						+ "The snapshot builder is updating the file.");
+			}
 		} else {
 			LOG.info("DHBP : " + "Decision for Dictionary DB is NONE.");
 		}
-		LOG.info("DHBP : " + "Checking if files exist.");
-		if (!(new File(dictDataFilePath).exists())) {
-			LOG.info("DHBP : " + "Dict data file missing. Creating file.");
-			fetchDictData = true;
+		if (returnDictFile && dict == null) {
+			LOG.error("DHBP : " + "Dictionary Data file not built yet.");
+			returnDictFile = false;
 		}
-		if (!(new File(loaEccnFilePath).exists())) {
-			LOG.info("DHBP : " + "LOA-ECCN data file missing. Creating file.");
-			fetchLoaData = true;
+		if (returnLoaFile && loaEccn == null) {
+			LOG.error("DHBP : " + "LIC-LOA-ECCN Data file not built yet.");
+			returnLoaFile = false;
 		}
-		if (!fetchLoaData && !returnLoaFile && !fetchDictData
-				&& !returnDictFile) {
+		if (!returnLoaFile && !returnDictFile) {
 			LOG.info("DHBP : " + "Nothing to return.");
 			return null;
 		}
-		if (fetchDictData) {
-			List<HashMap<String, String>> dictionaryData = getDictionaryData();
-			if (dictionaryData != null && !dictionaryData.isEmpty()) {
-				writeDictionaryData(dictionaryData);
+		return buildResult(dict, loaEccn, returnDictFile, returnLoaFile,
+				false, -1, -1, false, false);
+	}
+
+	/** Answers a request which carries the generations of the data held by
+	 * the Policy Controller by comparing them with the generations of the
+	 * published snapshots.
+	 * 
+	 * @param request Contains the request from the Policy Controller.
+	 * @return HashMap containing data to be updated on the client side, or
+	 * null if the client is up to date. */
+	private Serializable prepareGenerationData(Map<String, Object> request) {
+		if (getProtocolVersion(request) >= PluginConstants.PROTOCOL_CHUNKED
+				&& request.get("PayloadId") != null) {
+			final HashMap<String, Object> chunk = prepareChunk(request);
+			if (chunk != null) {
+				return chunk;
 			}
 		}
-		if (fetchLoaData) {
-			List<HashMap<String, String>> licLoaEccnData = getLicLoaEccnData();
-			if (licLoaEccnData != null && !licLoaEccnData.isEmpty()) {
-				writeLicLoaEccnData(licLoaEccnData);
+		final long pcDictGeneration = getGeneration(request, "DictGeneration");
+		final long pcLoaGeneration = getGeneration(request, "LoaGeneration");
+		final DataSnapshot<CompactDictionary> dict = getDictSnapshot();
+		final DataSnapshot<Map<String, String>> loaEccn = getLoaEccnSnapshot();
+		/* Data whose content the Policy Controller already holds is not sent
+		 * again, whatever its generation. */
+		final boolean returnDictFile = dict != null
+				&& pcDictGeneration != dict.getGeneration()
+				&& !isHeld(request, "DictHash", dict);
+		final boolean returnLoaFile = loaEccn != null
+				&& pcLoaGeneration != loaEccn.getGeneration()
+				&& !isHeld(request, "LoaHash", loaEccn);
+		if (!returnDictFile && !returnLoaFile) {
+			LOG.info("DHBP : " + "Policy Controller is at generation "
+					+ pcDictGeneration + "/" + pcLoaGeneration
+					+ ". Nothing to return.");
+			return null;
+		}
+		LOG.info("DHBP : " + "Policy Controller is at generation "
+				+ pcDictGeneration + "/" + pcLoaGeneration
+				+ ", server is at generation "
+				+ (dict == null ? -1 : dict.getGeneration()) + "/"
+				+ (loaEccn == null ? -1 : loaEccn.getGeneration()) + ".");
+		long dictBase = -1;
+		if (getProtocolVersion(request) >= PluginConstants.PROTOCOL_DICT_DELTA) {
+			dictBase = pcDictGeneration;
+		}
+		long loaBase = -1;
+		if (getProtocolVersion(request) >= PluginConstants.PROTOCOL_LOA_DELTA) {
+			loaBase = pcLoaGeneration;
+		}
+		final boolean compact = getProtocolVersion(request) >= PluginConstants.PROTOCOL_COMPACT_DATA;
+		final boolean chunked = getProtocolVersion(request) >= PluginConstants.PROTOCOL_CHUNKED;
+		return buildResult(dict, loaEccn, returnDictFile, returnLoaFile, true,
+				dictBase, loaBase, compact, chunked);
+	}
+
+	/** Answers a request for the next chunk of a payload.
+	 * 
+	 * @param request request carrying PayloadId and ChunkIndex.
+	 * @return the chunk, or null if the payload is not known any more, in
+	 * which case the request is answered as if no transfer was going on. */
+	private HashMap<String, Object> prepareChunk(Map<String, Object> request) {
+		final Object payloadId = request.get("PayloadId");
+		final Object chunkIndex = request.get("ChunkIndex");
+		final Payload payload = payloadId instanceof String ? transfers
+				.get((String) payloadId) : null;
+		if (payload == null || !(chunkIndex instanceof Number)) {
+			LOG.info("DHBP : " + "Payload " + payloadId
+					+ " is not known any more. Starting over.");
+			return null;
+		}
+		final HashMap<String, Object> chunk = getChunk(payload,
+				((Number) chunkIndex).intValue());
+		if (chunk != null) {
+			LOG.info("DHBP : " + "Sending chunk " + chunkIndex + "/"
+					+ chunk.get("ChunkCount") + " of payload " + payloadId
+					+ ".");
+		}
+		return chunk;
+	}
+
+	/** Cuts a chunk out of a payload.
+	 * 
+	 * @param payload payload sent in chunks.
+	 * @param index index of the chunk, starting at 0.
+	 * @return HashMap with the payload id, the chunk index and count and the
+	 * data of the chunk, or null if there is no such chunk. */
+	private HashMap<String, Object> getChunk(Payload payload, int index) {
+		final byte[] data = payload.getData();
+		final int chunkSize = (int) Math.min(transferChunkSize,
+				Integer.MAX_VALUE);
+		final int chunkCount = (data.length + chunkSize - 1) / chunkSize;
+		if (index < 0 || index >= chunkCount) {
+			return null;
+		}
+		final int from = index * chunkSize;
+		final HashMap<String, Object> chunk = new HashMap<String, Object>();
+		chunk.put("PayloadId", payload.getHash());
+		chunk.put("ChunkIndex", Integer.valueOf(index));
+		chunk.put("ChunkCount", Integer.valueOf(chunkCount));
+		chunk.put("Data", Arrays.copyOfRange(data, from,
+				Math.min(data.length, from + chunkSize)));
+		return chunk;
+	}
+
+	/** Builds the response for the given flags from the given snapshots.
+	 * 
+	 * @param dict dictionary snapshot to send.
+	 * @param loaEccn LIC-LOA-ECCN snapshot to send.
+	 * @param returnDictFile whether the dictionary data is sent.
+	 * @param returnLoaFile whether the LIC-LOA-ECCN data is sent.
+	 * @param withGenerations whether the data generations are added.
+	 * @param dictBase dictionary generation held by the Policy Controller, to
+	 * send the changes since, or -1 to send the full data.
+	 * @param loaBase LIC-LOA-ECCN generation held by the Policy Controller, to
+	 * send the changes since, or -1 to send the full data.
+	 * @param compact whether the full data may be sent in the compact format.
+	 * @param chunked whether data larger than transfer_chunk_size may be sent
+	 * in chunks. The result then carries the first chunk, and the Policy
+	 * Controller asks for the others by PayloadId and ChunkIndex in its next
+	 * requests.
+	 * @return HashMap containing data to be updated on the client side. */
+	private HashMap<String, Object> buildResult(DataSnapshot<CompactDictionary> dict,
+			DataSnapshot<Map<String, String>> loaEccn, boolean returnDictFile,
+			boolean returnLoaFile, boolean withGenerations, long dictBase,
+			long loaBase, boolean compact, boolean chunked) {
+		final String key = (compact ? "C" : "J") + ":"
+				+ (returnDictFile ? dictBase + ">"
+				+ dict.getGeneration() : "NO")
+				+ "/"
+				+ (returnLoaFile ? loaBase + ">" + loaEccn.getGeneration()
+						: "NO");
+		Payload payload = payloadCache.get(key);
+		if (payload == null) {
+			payload = buildCachedPayload(key, returnDictFile ? dict : null,
+					returnLoaFile ? loaEccn : null, dictBase, loaBase, compact);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("DHBP : " + "Payload cache hits : "
+					+ payloadCache.getHits() + ", misses : "
+					+ payloadCache.getMisses() + ".");
+		}
+		HashMap<String, Object> result = new HashMap<String, Object>();
+		result.put("dictFile", payload.getDictFile());
+		result.put("loaFile", payload.getLoaFile());
+		if (withGenerations) {
+			if (dict != null) {
+				result.put("DictGeneration", Long.valueOf(dict.getGeneration()));
+				result.put("DictHash", dict.getHash());
+			}
+			if (loaEccn != null) {
+				result.put("LoaGeneration",
+						Long.valueOf(loaEccn.getGeneration()));
+				result.put("LoaHash", loaEccn.getHash());
+			}
+			if ("DELTA".equals(payload.getDictFile())) {
+				result.put("DictBaseGeneration", Long.valueOf(dictBase));
+			}
+			if ("DELTA".equals(payload.getLoaFile())) {
+				result.put("LoaBaseGeneration", Long.valueOf(loaBase));
 			}
 		}
-		List<String> files = new ArrayList<String>();
-		if (returnDictFile) {
-			if (new File(dictDataFilePath).exists()) {
-				files.add(dictDataFilePath);
-			} else {
-				List<HashMap<String, String>> dictionaryData = getDictionaryData();
-				if (dictionaryData != null && !dictionaryData.isEmpty()) {
-					writeDictionaryData(dictionaryData);
+		final byte[] data = payload.getData();
+		if (chunked && transferChunkSize > 0 && data != null
+				&& data.length > transferChunkSize) {
+			transfers.put(payload.getHash(), payload);
+			result.putAll(getChunk(payload, 0));
+			LOG.info("DHBP : " + "Sending " + data.length + " bytes in "
+					+ result.get("ChunkCount") + " chunks as payload "
+					+ payload.getHash() + ".");
+		} else {
+			result.put("Data", data);
+		}
+		LOG.info("DHBP : " + "Returning : " + result.toString());
+		return result;
+	}
+
+	/** Builds a payload missing from the cache and caches it. Heartbeats
+	 * asking for the same payload meanwhile wait for it instead of building
+	 * it again, as all Policy Controllers ask for a new generation at once.
+	 * 
+	 * @param key key of the payload in the cache.
+	 * @return the payload. */
+	private Payload buildCachedPayload(final String key,
+			final DataSnapshot<CompactDictionary> dict,
+			final DataSnapshot<Map<String, String>> loaEccn,
+			final long dictBase, final long loaBase, final boolean compact) {
+		final Future<Payload> build = payloadBuilds.submit(key,
+				new Callable<Payload>() {
+					public Payload call() {
+						final Payload payload = buildPayload(dict, loaEccn,
+								dictBase, loaBase, compact);
+						payloadCache.put(key, payload);
+						return payload;
+					}
+				}, CALLER_RUNS);
+		try {
+			return build.get();
+		} catch (ExecutionException e) {
+			LOG.error("DHBP : " + "Error building payload " + key + ".", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return buildPayload(dict, loaEccn, dictBase, loaBase, compact);
+	}
+
+	/** Compresses the given snapshots into a payload. Each data set is sent
+	 * as the changes since the base generation when they are known and smaller
+	 * than the full data.
+	 * 
+	 * @param dict dictionary snapshot to send, or null.
+	 * @param loaEccn LIC-LOA-ECCN snapshot to send, or null.
+	 * @param compact whether the full data may be sent in the compact format.
+	 * @return the payload, with null data if it could not be built. */
+	private Payload buildPayload(DataSnapshot<CompactDictionary> dict,
+			DataSnapshot<Map<String, String>> loaEccn, long dictBase,
+			long loaBase, boolean compact) {
+		LOG.info("DHBP : " + "Creating zip file.");
+		String dictFile = "NO";
+		String loaFile = "NO";
+		byte[] data = null;
+		try {
+			final PayloadBuilder builder = new PayloadBuilder();
+			if (dict != null) {
+				HashMap<String, Object> dictDelta = getDictionaryDelta(
+						dictBase, dict);
+				if (dictDelta != null) {
+					builder.addObject(PluginConstants.dictDeltaFileName,
+							dictDelta);
+					dictFile = "DELTA";
+				} else {
+					builder.addEntry(PluginConstants.dictDataFileName,
+							getData(dict, compact));
+					dictFile = "YES";
 				}
-				if (new File(dictDataFilePath).exists()) {
-					files.add(dictDataFilePath);
+			}
+			if (loaEccn != null) {
+				HashMap<String, Object> loaDelta = getLicLoaEccnDelta(loaBase,
+						loaEccn);
+				if (loaDelta != null) {
+					builder.addObject(PluginConstants.loaEccnDeltaFileName,
+							loaDelta);
+					loaFile = "DELTA";
 				} else {
-					LOG.error("DHBP : "
-							+ "Unable to create Dictionary Data file.");
+					builder.addEntry(PluginConstants.loaEccnFileName,
+							getData(loaEccn, compact));
+					loaFile = "YES";
 				}
 			}
+			data = builder.toByteArray();
+		} catch (IOException e) {
+			LOG.error("DHBP : " + "IO Exception in creating zip file."
+					+ e.getMessage());
 		}
-		if (returnLoaFile) {
-			if (new File(loaEccnFilePath).exists()) {
-				files.add(loaEccnFilePath);
-			} else {
-				List<HashMap<String, String>> licLoaEccnData = getLicLoaEccnData();
-				if (licLoaEccnData != null && !licLoaEccnData.isEmpty()) {
-					writeLicLoaEccnData(licLoaEccnData);
-				}
-				if (new File(loaEccnFilePath).exists()) {
-					files.add(loaEccnFilePath);
-				} else {
-					LOG.error("DHBP : "
-							+ "Unable to create LIA-LOA-ECCN Data file.");
+		return new Payload(dictFile, loaFile, data);
+	}
+
+	/** Gets the content of the data file of a snapshot. The compact format is
+	 * only used if the Policy Controller reads it and the snapshot has it,
+	 * snapshots loaded from an older data file only have the serialized data.
+	 * 
+	 * @return content of the data file. */
+	private byte[] getData(DataSnapshot<?> snapshot, boolean compact)
+			throws IOException {
+		if (compact && snapshot.getCompactData() != null) {
+			return snapshot.getCompactData();
+		}
+		final byte[] data = snapshot.getData();
+		if (data == null) {
+			throw new IOException("Cannot serialize data.");
+		}
+		return data;
+	}
+
+	/** Computes the dictionary rows added and removed between a generation and
+	 * the given snapshot.
+	 * 
+	 * @return HashMap with the added and removed records, or null if either
+	 * snapshot is not known or the full data is cheaper to send. */
+	private HashMap<String, Object> getDictionaryDelta(long fromGeneration,
+			DataSnapshot<CompactDictionary> to) {
+		if (fromGeneration < 0) {
+			return null;
+		}
+		CompactDictionary fromRows = dictHistory.get(fromGeneration);
+		CompactDictionary toRows = to.getRows();
+		if (fromRows == null || toRows == null) {
+			LOG.info("DHBP : " + "Dictionary generation " + fromGeneration
+					+ " is not known any more. Sending full data.");
+			return null;
+		}
+		HashMap<String, Object> delta = DeltaHelper.getDictionaryDelta(
+				fromRows, toRows);
+		if (delta != null) {
+			LOG.info("DHBP : " + "Sending dictionary changes "
+					+ fromGeneration + " > " + to.getGeneration() + " : "
+					+ ((List<?>) delta.get(DeltaHelper.ADDED)).size()
+					+ " added, "
+					+ ((List<?>) delta.get(DeltaHelper.REMOVED)).size()
+					+ " removed.");
+		}
+		return delta;
+	}
+
+	/** Computes the LIC-LOA-ECCN rows inserted, deleted and with updated dates
+	 * between a generation and the given snapshot.
+	 * 
+	 * @return HashMap with the added, removed and updated records, or null if
+	 * either snapshot is not known or the full data is cheaper to send. */
+	private HashMap<String, Object> getLicLoaEccnDelta(long fromGeneration,
+			DataSnapshot<Map<String, String>> to) {
+		if (fromGeneration < 0) {
+			return null;
+		}
+		Map<String, String> fromRows = loaEccnHistory.get(fromGeneration);
+		Map<String, String> toRows = to.getRows();
+		if (fromRows == null || toRows == null) {
+			LOG.info("DHBP : " + "LIC-LOA-ECCN generation " + fromGeneration
+					+ " is not known any more. Sending full data.");
+			return null;
+		}
+		HashMap<String, Object> delta = DeltaHelper.getLicLoaEccnDelta(
+				fromRows, toRows);
+		if (delta != null) {
+			LOG.info("DHBP : " + "Sending LIC-LOA-ECCN changes "
+					+ fromGeneration + " > " + to.getGeneration() + " : "
+					+ ((List<?>) delta.get(DeltaHelper.ADDED)).size()
+					+ " added, "
+					+ ((List<?>) delta.get(DeltaHelper.REMOVED)).size()
+					+ " removed, "
+					+ ((List<?>) delta.get(DeltaHelper.UPDATED)).size()
+					+ " updated.");
+		}
+		return delta;
+	}
+
+	/** Starts the background threads which check the sources for changes
+	 * every source_check_interval seconds and rebuild the snapshots, so that
+	 * heartbeats only ever serve prebuilt data. Each source is rebuilt on its
+	 * own thread, so a long dictionary scan does not hold up the CSV. */
+	private void startSnapshotBuilder() {
+		final long interval = Math.max(1, PropertyLoader.getLongProperty(
+				PluginConstants.pluginProps, "source_check_interval", 60));
+		final ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicLong count = new AtomicLong();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r,
+						"DowHeartbeatSnapshotBuilder-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		snapshotBuilder = Executors.newFixedThreadPool(2, threadFactory);
+		snapshotScheduler = Executors
+				.newSingleThreadScheduledExecutor(threadFactory);
+		snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				triggerRefresh(LOA_ECCN_SOURCE);
+			}
+		}, 0, interval, TimeUnit.SECONDS);
+		snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				triggerRefresh(DICT_SOURCE);
+			}
+		}, 0, interval, TimeUnit.SECONDS);
+		LOG.info("DHBP : " + "Snapshot builder started. Checking sources every "
+				+ interval + " seconds.");
+		watchLicLoaEccnFile();
+	}
+
+	/** Starts watching the CSV file. A change schedules a refresh once the
+	 * file has not changed for csv_settle_time seconds, so that a file which
+	 * is still being copied is not parsed. If the file can not be watched it
+	 * is only checked every source_check_interval seconds. */
+	private void watchLicLoaEccnFile() {
+		final String licLoaEccnFile = PluginConstants.pluginProps
+				.getProperty("csv_file_path");
+		if (licLoaEccnFile == null || licLoaEccnFile.isEmpty()) {
+			return;
+		}
+		final long settleTime = PropertyLoader.getLongProperty(
+				PluginConstants.pluginProps, "csv_settle_time", 2);
+		csvWatcher = new FileWatcher(new File(licLoaEccnFile), new Runnable() {
+			@Override
+			public void run() {
+				synchronized (csvWatcher) {
+					if (pendingCsvRefresh != null) {
+						pendingCsvRefresh.cancel(false);
+					}
+					pendingCsvRefresh = snapshotScheduler.schedule(
+							new Runnable() {
+								@Override
+								public void run() {
+									LOG.info("DHBP : " + "LIC-LOA-ECCN CSV modified.");
+									triggerRefresh(LOA_ECCN_SOURCE);
+								}
+							}, settleTime, TimeUnit.SECONDS);
 				}
 			}
+		});
+		if (!csvWatcher.start()) {
+			LOG.info("DHBP : " + "Cannot watch the LIC-LOA-ECCN CSV file, "
+					+ "relying on periodic checks.");
 		}
-		HashMap<String, Object> result = new HashMap<String, Object>();
-		if (returnDictFile) {
-			result.put("dictFile", "YES");
-		} else {
-			result.put("dictFile", "NO");
+	}
+
+	/** Starts a refresh of the snapshot of the given source, unless one is
+	 * already queued or running, in which case that one is returned. A check
+	 * that comes around while a rebuild is still running therefore never
+	 * starts a second scan of the same source.
+	 * 
+	 * @param source DICT_SOURCE or LOA_ECCN_SOURCE.
+	 * @return the refresh, which yields the snapshot current after it. */
+	private Future<DataSnapshot<?>> triggerRefresh(final String source) {
+		final Future<DataSnapshot<?>> refresh = rebuilds.submit(source,
+				new Callable<DataSnapshot<?>>() {
+					@Override
+					public DataSnapshot<?> call() {
+						if (DICT_SOURCE.equals(source)) {
+							return refreshDictionarySnapshot();
+						}
+						return refreshLicLoaEccnSnapshot();
+					}
+				}, snapshotBuilder);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("DHBP : " + "Snapshot rebuilds started : "
+					+ rebuilds.getStarted() + ", coalesced : "
+					+ rebuilds.getCoalesced() + ".");
 		}
-		if (returnLoaFile) {
-			result.put("loaFile", "YES");
-		} else {
-			result.put("loaFile", "NO");
+		return refresh;
+	}
+
+	/** Rebuilds the LIC-LOA-ECCN snapshot if the CSV changed since it was
+	 * built. Runs on a snapshot builder thread.
+	 * 
+	 * @return the current snapshot. */
+	private DataSnapshot<?> refreshLicLoaEccnSnapshot() {
+		try {
+			final long sourceTime = getLicLoaEccnSourceTime();
+			observedLoaEccnSourceTime = sourceTime;
+			final DataSnapshot<Map<String, String>> current = loaEccnSnapshot;
+			if (current == null || current.getSourceTime() != sourceTime) {
+				LOG.info("DHBP : " + "LIC-LOA-ECCN CSV changed. Updating file.");
+				rebuildLicLoaEccnSnapshot(sourceTime);
+			}
+		} catch (Exception e) {
+			LOG.error("DHBP : " + "Error creating LIC-LOA-ECCN Data file.", e);
 		}
-		byte[] zipData = zipFiles(files);
-		if (zipData != null) {
-			result.put("Data", zipData);
-		} else {
-			result.put("Data", null);
+		return loaEccnSnapshot;
+	}
+
+	/** Rebuilds the dictionary snapshot if the dictionary changed since it was
+	 * built. Runs on a snapshot builder thread.
+	 * 
+	 * @return the current snapshot. */
+	private DataSnapshot<?> refreshDictionarySnapshot() {
+		try {
+			final long sourceTime = getDictionarySourceTime();
+			observedDictSourceTime = sourceTime;
+			final DataSnapshot<CompactDictionary> current = dictSnapshot;
+			if (current == null || current.getSourceTime() != sourceTime) {
+				LOG.info("DHBP : " + "Dictionary DB changed. Updating file.");
+				rebuildDictionarySnapshot(sourceTime);
+			}
+		} catch (Exception e) {
+			LOG.error("DHBP : " + "Error creating Dictionary Data file.", e);
 		}
-		LOG.info("DHBP : " + "Returning : " + result.toString());
-		return result;
+		return dictSnapshot;
+	}
+
+	/** Gets the dictionary snapshot to serve. The previous snapshot is served
+	 * while a rebuild is running, only if there is none yet does the request
+	 * wait for the rebuild in flight. */
+	private DataSnapshot<CompactDictionary> getDictSnapshot() {
+		if (dictSnapshot == null) {
+			awaitRebuild(DICT_SOURCE);
+		}
+		return dictSnapshot;
+	}
+
+	/** Gets the LIC-LOA-ECCN snapshot to serve, see getDictSnapshot. */
+	private DataSnapshot<Map<String, String>> getLoaEccnSnapshot() {
+		if (loaEccnSnapshot == null) {
+			awaitRebuild(LOA_ECCN_SOURCE);
+		}
+		return loaEccnSnapshot;
+	}
+
+	/** Waits up to snapshot_wait_timeout seconds for the rebuild of the given
+	 * source in flight, if any. Never starts a rebuild itself. */
+	private void awaitRebuild(String source) {
+		final Future<DataSnapshot<?>> refresh = rebuilds.getInFlight(source);
+		if (refresh == null) {
+			return;
+		}
+		final long timeout = PropertyLoader.getLongProperty(
+				PluginConstants.pluginProps, "snapshot_wait_timeout", 10);
+		try {
+			refresh.get(timeout, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			LOG.info("DHBP : " + source + " data is still being built.");
+		} catch (ExecutionException e) {
+			LOG.error("DHBP : " + "Error building " + source + " data.", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void rebuildDictionarySnapshot(long sourceTime) {
+		final CompactDictionary dictionary = getDictionaryData();
+		if (dictionary == null || dictionary.size() == 0) {
+			return;
+		}
+		/* The Java serialized data is only built once an older Policy
+		 * Controller asks for it, see DataSnapshot.getData. */
+		final byte[] compactData = toCompactData(dictionary);
+		if (compactData == null) {
+			return;
+		}
+		final DataSnapshot<CompactDictionary> current = dictSnapshot;
+		final long generation = dictGeneration.incrementAndGet();
+		final DataSnapshot<CompactDictionary> snapshot = new DataSnapshot<CompactDictionary>(
+				generation, sourceTime, System.currentTimeMillis(), null,
+				compactData, dictionary);
+		if (isUnchanged(current, snapshot)) {
+			dictSnapshot = current.withSourceTime(sourceTime);
+			LOG.info("DHBP : " + "Dictionary data is unchanged. Keeping generation "
+					+ current.getGeneration() + ".");
+			return;
+		}
+		dictHistory.put(generation, dictionary);
+		dictSnapshot = snapshot;
+		LOG.info("DHBP : " + "Published dictionary snapshot generation "
+				+ generation + ".");
+		final String dictDataFilePath = getDictDataFilePath();
+		LOG.info("DHBP : " + "Writing Dictionary data to file - "
+				+ dictDataFilePath);
+		Utils.writeFile(dictDataFilePath, compactData);
+		LOG.info("DHBP : " + "Wrote data to file.");
+	}
+
+	private void rebuildLicLoaEccnSnapshot(long sourceTime) {
+		List<HashMap<String, String>> licLoaEccnData = getLicLoaEccnData();
+		if (licLoaEccnData == null || licLoaEccnData.isEmpty()) {
+			return;
+		}
+		final byte[] compactData = toCompactData(licLoaEccnData);
+		if (compactData == null) {
+			return;
+		}
+		final DataSnapshot<Map<String, String>> current = loaEccnSnapshot;
+		final long generation = loaEccnGeneration.incrementAndGet();
+		final Map<String, String> rows = DeltaHelper
+				.getLicLoaEccnRows(licLoaEccnData);
+		final DataSnapshot<Map<String, String>> snapshot = new DataSnapshot<Map<String, String>>(
+				generation, sourceTime, System.currentTimeMillis(), null,
+				compactData, rows);
+		if (isUnchanged(current, snapshot)) {
+			loaEccnSnapshot = current.withSourceTime(sourceTime);
+			LOG.info("DHBP : " + "LIC-LOA-ECCN data is unchanged. Keeping generation "
+					+ current.getGeneration() + ".");
+			return;
+		}
+		loaEccnHistory.put(generation, rows);
+		loaEccnSnapshot = snapshot;
+		LOG.info("DHBP : " + "Published LIC-LOA-ECCN snapshot generation "
+				+ generation + ".");
+		final String licLoaEccnDataFilePath = getLoaEccnFilePath();
+		LOG.info("DHBP : " + "Writing LIC-LOA-ECCN data to file - "
+				+ licLoaEccnDataFilePath);
+		Utils.writeFile(licLoaEccnDataFilePath, compactData);
+		LOG.info("DHBP : " + "Wrote data to file.");
+	}
+
+	/** Checks whether a rebuilt snapshot has the same content as the current
+	 * one, in which case the current generation is kept so that no Policy
+	 * Controller downloads the same data again. */
+	private boolean isUnchanged(DataSnapshot<?> current,
+			DataSnapshot<?> snapshot) {
+		return current != null && snapshot.getHash() != null
+				&& snapshot.getHash().equals(current.getHash());
+	}
+
+	/** Checks whether the Policy Controller holds the content of a snapshot.
+	 * 
+	 * @param request Contains the request from the Policy Controller.
+	 * @param key key of the hash of the data held.
+	 * @param snapshot snapshot to be sent.
+	 * @return true if the Policy Controller sends content hashes and the
+	 * hash sent matches the hash of the snapshot. */
+	private boolean isHeld(Map<String, Object> request, String key,
+			DataSnapshot<?> snapshot) {
+		if (getProtocolVersion(request) < PluginConstants.PROTOCOL_CONTENT_HASH) {
+			return false;
+		}
+		final Object hash = request.get(key);
+		return hash != null && hash.equals(snapshot.getHash());
+	}
+
+	/** Publishes the data files written before the last restart, so that they
+	 * can be served until the snapshot builder has rebuilt them. The files
+	 * are in the compact format, or Java serialized if written by an older
+	 * version of the plugin. */
+	private void loadPersistedSnapshots() {
+		final String dictDataFilePath = getDictDataFilePath();
+		final byte[] dictData = Utils.readFile(dictDataFilePath);
+		if (dictData != null) {
+			dictSnapshot = new DataSnapshot<CompactDictionary>(dictGeneration.get(),
+					-1, new File(dictDataFilePath).lastModified(),
+					isSerialized(dictData) ? dictData : null,
+					isSerialized(dictData) ? null : dictData, null);
+		}
+		final String loaEccnFilePath = getLoaEccnFilePath();
+		final byte[] loaEccnData = Utils.readFile(loaEccnFilePath);
+		if (loaEccnData != null) {
+			loaEccnSnapshot = new DataSnapshot<Map<String, String>>(
+					loaEccnGeneration.get(), -1,
+					new File(loaEccnFilePath).lastModified(),
+					isSerialized(loaEccnData) ? loaEccnData : null,
+					isSerialized(loaEccnData) ? null : loaEccnData, null);
+		}
+	}
+
+	/** @return true if the content of a data file is Java serialized. */
+	private static boolean isSerialized(byte[] data) {
+		return data.length >= 2 && (data[0] & 0xFF) == 0xAC
+				&& (data[1] & 0xFF) == 0xED;
+	}
+
+	private long getDictionarySourceTime() {
+		Date dictUpdateTime = DictionaryData.getLastModifiedDate();
+		return dictUpdateTime == null ? 0 : dictUpdateTime.getTime();
+	}
+
+	private long getLicLoaEccnSourceTime() {
+		String licLoaEccnFile = PluginConstants.pluginProps
+				.getProperty("csv_file_path");
+		if (licLoaEccnFile == null || licLoaEccnFile.isEmpty()) {
+			return 0;
+		}
+		return new File(licLoaEccnFile).lastModified();
+	}
+
+	private int getProtocolVersion(Map<String, Object> request) {
+		Object version = request.get("ProtocolVersion");
+		if (version instanceof Number) {
+			return ((Number) version).intValue();
+		}
+		return 1;
+	}
+
+	private long getGeneration(Map<String, Object> request, String key) {
+		Object generation = request.get(key);
+		if (generation instanceof Number) {
+			return ((Number) generation).longValue();
+		}
+		return -1;
 	}
 
 	/** Services the heartbeat request from the client and returns the updated
@@ -909,22 +1529,35 @@ public class DowHeartbeatPluginServer implements IDCCHeartbeatServerPlugin {
 		}
 	}
 
-	/** Writes any serializable object to file.
+	/** Writes data records into the content of a data file in the compact
+	 * format.
 	 * 
-	 * @param o object to be written to file.
-	 * @param path path at which file has to be created. */
-	private void writeSerializableDataToFile(Object o, String path) {
+	 * @param records records to be written.
+	 * @return the data, or null if it could not be written. */
+	private byte[] toCompactData(List<HashMap<String, String>> records) {
 		try {
-			final OutputStream file = new FileOutputStream(path);
-			final OutputStream buffer = new BufferedOutputStream(file);
-			final ObjectOutput output = new ObjectOutputStream(buffer);
-			try {
-				output.writeObject(o);
-			} finally {
-				output.close();
-			}
+			return RecordWriter.toByteArray(records);
 		} catch (IOException ex) {
-			LOG.error("DHBP : " + "Cannot write to file.", ex);
+			LOG.error("DHBP : " + "Cannot write compact data.", ex);
+			return null;
+		}
+	}
+
+	/** Writes dictionary data into the content of a data file in the compact
+	 * format.
+	 * 
+	 * @param dictionary dictionary data to be written.
+	 * @return the data, or null if it could not be written. */
+	private byte[] toCompactData(CompactDictionary dictionary) {
+		try {
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			final RecordWriter writer = new RecordWriter(buffer);
+			dictionary.writeTo(writer);
+			writer.close();
+			return buffer.toByteArray();
+		} catch (IOException ex) {
+			LOG.error("DHBP : " + "Cannot write compact data.", ex);
+			return null;
 		}
 	}
 
@@ -0,0 +1,158 @@
+package com.nextlabs.hb.helper;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Inserts rows with one prepared statement, executed in batches. A row which
+ * fails is logged and skipped, as are the rows inserted one by one. The
+ * caller owns the connection and the transaction.
+ */
+public class BatchInserter {
+
+	private static final Log LOG = LogFactory.getLog(BatchInserter.class);
+
+	private final PreparedStatement statement;
+
+	private final int batchSize;
+
+	private final String errorMessage;
+
+	private final List<Object[]> rows = new ArrayList<Object[]>();
+
+	private final List<Object> sources = new ArrayList<Object>();
+
+	private int inserted;
+
+	/**
+	 * @param sql
+	 *            the insert statement, with a parameter per value.
+	 * @param batchSize
+	 *            number of rows per batch.
+	 * @param errorMessage
+	 *            logged with the source of a row which can not be inserted.
+	 */
+	public BatchInserter(Connection connection, String sql, int batchSize,
+			String errorMessage) throws SQLException {
+
+		this.statement = connection.prepareStatement(sql);
+		this.batchSize = Math.max(1, batchSize);
+		this.errorMessage = errorMessage;
+
+	}
+
+	/**
+	 * Adds a row, executing the batch once it is full.
+	 *
+	 * @param source
+	 *            the record the row comes from, for the error log.
+	 * @param values
+	 *            the values of the parameters.
+	 */
+	public void add(Object source, Object... values) throws SQLException {
+
+		rows.add(values);
+		sources.add(source);
+
+		if (rows.size() >= batchSize) {
+			flush();
+		}
+
+	}
+
+	/**
+	 * Executes the rows added since the last batch.
+	 */
+	public void flush() throws SQLException {
+
+		if (rows.isEmpty()) {
+			return;
+		}
+
+		for (Object[] values : rows) {
+			setValues(values);
+			statement.addBatch();
+		}
+
+		try {
+
+			statement.executeBatch();
+			inserted += rows.size();
+
+		} catch (BatchUpdateException e) {
+
+			/*
+			 * Depending on the driver, the batch stops at the first failed
+			 * row or marks failed rows and goes on. Rows not executed are
+			 * inserted one by one.
+			 */
+			statement.clearBatch();
+
+			int[] counts = e.getUpdateCounts();
+			int executed = counts == null ? 0 : counts.length;
+
+			for (int i = 0; i < executed; i++) {
+				if (counts[i] == Statement.EXECUTE_FAILED) {
+					LOG.error(errorMessage + sources.get(i));
+				} else {
+					inserted++;
+				}
+			}
+
+			for (int i = executed; i < rows.size(); i++) {
+				insert(i);
+			}
+
+		}
+
+		rows.clear();
+		sources.clear();
+
+	}
+
+	/**
+	 * @return the number of rows inserted.
+	 */
+	public int getInserted() {
+		return inserted;
+	}
+
+	public void close() {
+
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			LOG.error("Cant close statement.", e);
+		}
+
+	}
+
+	private void insert(int row) {
+
+		try {
+			setValues(rows.get(row));
+			statement.executeUpdate();
+			inserted++;
+		} catch (SQLException e) {
+			LOG.error(errorMessage + sources.get(row));
+		}
+
+	}
+
+	private void setValues(Object[] values) throws SQLException {
+
+		for (int i = 0; i < values.length; i++) {
+			statement.setObject(i + 1, values[i]);
+		}
+
+	}
+
+}
@@ -0,0 +1,239 @@
+package com.nextlabs.hb.helper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary data in a compact, immutable form: the distinct user IDs and the
+ * distinct license and LOA codes are each kept once, and every (UID, LICENSE)
+ * and (UID, LOA) row is a single long made of their ids.
+ *
+ * All values are lower case, as stored by the Policy Controller. Ids are
+ * assigned in the order of the strings, so the rows sort by user, kind and
+ * code, which lets two snapshots be compared in one pass.
+ */
+public class CompactDictionary {
+
+	private static final long LOA_ROW = 1L << 31;
+
+	private static final long CODE_MASK = LOA_ROW - 1;
+
+	private final String[] users;
+
+	private final String[] codes;
+
+	private final long[] rows;
+
+	private CompactDictionary(String[] users, String[] codes, long[] rows) {
+		this.users = users;
+		this.codes = codes;
+		this.rows = rows;
+	}
+
+	public int size() {
+		return rows.length;
+	}
+
+	public String getUser(int row) {
+		return users[(int) (rows[row] >>> 32)];
+	}
+
+	public boolean isLicense(int row) {
+		return (rows[row] & LOA_ROW) == 0;
+	}
+
+	public String getCode(int row) {
+		return codes[(int) (rows[row] & CODE_MASK)];
+	}
+
+	/**
+	 * Compares a row of this snapshot with a row of another snapshot.
+	 */
+	public int compareRow(int row, CompactDictionary other, int otherRow) {
+
+		int result = getUser(row).compareTo(other.getUser(otherRow));
+
+		if (result == 0) {
+			result = (int) ((rows[row] & LOA_ROW) >>> 31)
+					- (int) ((other.rows[otherRow] & LOA_ROW) >>> 31);
+		}
+
+		if (result == 0) {
+			result = getCode(row).compareTo(other.getCode(otherRow));
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * @return the row as a dictionary data record, with the UID and either
+	 *         the LICENSES or the LOAS field.
+	 */
+	public HashMap<String, String> toRecord(int row) {
+
+		HashMap<String, String> record = new HashMap<String, String>();
+		fillRecord(row, record);
+
+		return record;
+
+	}
+
+	/**
+	 * @return all rows as dictionary data records, for the Java serialized
+	 *         data file.
+	 */
+	public List<HashMap<String, String>> toRecords() {
+
+		List<HashMap<String, String>> records = new ArrayList<HashMap<String, String>>(
+				rows.length);
+
+		for (int row = 0; row < rows.length; row++) {
+			records.add(toRecord(row));
+		}
+
+		return records;
+
+	}
+
+	/**
+	 * Writes all rows as dictionary data records.
+	 */
+	public void writeTo(RecordWriter writer) throws IOException {
+
+		HashMap<String, String> record = new HashMap<String, String>();
+
+		for (int row = 0; row < rows.length; row++) {
+			record.clear();
+			fillRecord(row, record);
+			writer.writeRecord(record);
+		}
+
+	}
+
+	private void fillRecord(int row, Map<String, String> record) {
+
+		record.put("UID", getUser(row));
+		record.put(isLicense(row) ? "LICENSES" : "LOAS", getCode(row));
+
+	}
+
+	/**
+	 * Collects the rows of a CompactDictionary. Not thread safe.
+	 */
+	public static class Builder {
+
+		private final Map<String, Integer> userIds = new HashMap<String, Integer>();
+
+		private final Map<String, Integer> codeIds = new HashMap<String, Integer>();
+
+		private long[] rows = new long[1024];
+
+		private int size;
+
+		public void addLicense(String uid, String license) {
+			add(uid, 0, license);
+		}
+
+		public void addLoa(String uid, String loa) {
+			add(uid, LOA_ROW, loa);
+		}
+
+		public void addAll(CompactDictionary dictionary) {
+
+			for (int row = 0; row < dictionary.size(); row++) {
+				add(dictionary.getUser(row), dictionary.rows[row] & LOA_ROW,
+						dictionary.getCode(row));
+			}
+
+		}
+
+		private void add(String uid, long kind, String code) {
+
+			if (uid == null || code == null) {
+				return;
+			}
+
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, size * 2);
+			}
+
+			rows[size++] = ((long) intern(userIds, uid.toLowerCase()) << 32)
+					| kind | intern(codeIds, code.toLowerCase());
+
+		}
+
+		private static int intern(Map<String, Integer> ids, String value) {
+
+			Integer id = ids.get(value);
+
+			if (id == null) {
+				id = Integer.valueOf(ids.size());
+				ids.put(value, id);
+			}
+
+			return id.intValue();
+
+		}
+
+		public CompactDictionary build() {
+
+			String[] users = new String[userIds.size()];
+			int[] userOrder = sort(userIds, users);
+
+			String[] codes = new String[codeIds.size()];
+			int[] codeOrder = sort(codeIds, codes);
+
+			long[] sorted = new long[size];
+
+			for (int i = 0; i < size; i++) {
+				long row = rows[i];
+				sorted[i] = ((long) userOrder[(int) (row >>> 32)] << 32)
+						| (row & LOA_ROW)
+						| codeOrder[(int) (row & CODE_MASK)];
+			}
+
+			Arrays.sort(sorted);
+
+			/*
+			 * Drop duplicate rows.
+			 */
+			int unique = 0;
+
+			for (int i = 0; i < sorted.length; i++) {
+				if (unique == 0 || sorted[i] != sorted[unique - 1]) {
+					sorted[unique++] = sorted[i];
+				}
+			}
+
+			return new CompactDictionary(users, codes, Arrays.copyOf(sorted,
+					unique));
+
+		}
+
+		/**
+		 * Sorts the interned strings into the given array and returns, for
+		 * each id given while collecting, its position in the array.
+		 */
+		private static int[] sort(Map<String, Integer> ids, String[] values) {
+
+			ids.keySet().toArray(values);
+			Arrays.sort(values);
+
+			int[] order = new int[values.length];
+
+			for (int i = 0; i < values.length; i++) {
+				order[ids.get(values[i]).intValue()] = i;
+			}
+
+			return order;
+
+		}
+
+	}
+
+}
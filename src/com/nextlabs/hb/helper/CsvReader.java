@@ -0,0 +1,160 @@
+package com.nextlabs.hb.helper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads comma separated records one at a time from a stream, so that only the
+ * current record is held in memory. Fields may be enclosed in double quotes,
+ * in which case they can contain commas, line breaks and doubled quotes. Line
+ * breaks may be LF, CRLF or CR.
+ */
+public class CsvReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Reader reader;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	private int position;
+
+	private int limit;
+
+	private int lineNumber;
+
+	private int recordLineNumber;
+
+	private final StringBuilder field = new StringBuilder(64);
+
+	public CsvReader(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return the fields of the record, or null at the end of the stream.
+	 */
+	public List<String> readRecord() throws IOException {
+
+		int c = read();
+
+		if (c < 0) {
+			return null;
+		}
+
+		lineNumber++;
+		recordLineNumber = lineNumber;
+
+		List<String> fields = new ArrayList<String>(8);
+		boolean quoted = false;
+		field.setLength(0);
+
+		while (true) {
+
+			if (quoted) {
+
+				if (c < 0) {
+					break;
+				}
+
+				if (c == '"') {
+					c = read();
+					if (c == '"') {
+						field.append('"');
+					} else {
+						quoted = false;
+						continue;
+					}
+				} else {
+					if (c == '\n' || (c == '\r' && peek() != '\n')) {
+						lineNumber++;
+					}
+					field.append((char) c);
+				}
+
+			} else {
+
+				if (c < 0 || c == '\n') {
+					break;
+				}
+
+				if (c == '\r') {
+					if (peek() == '\n') {
+						read();
+					}
+					break;
+				}
+
+				if (c == ',') {
+					fields.add(field.toString());
+					field.setLength(0);
+				} else if (c == '"') {
+					quoted = true;
+				} else {
+					field.append((char) c);
+				}
+
+			}
+
+			c = read();
+
+		}
+
+		fields.add(field.toString());
+
+		return fields;
+
+	}
+
+	/**
+	 * @return the line the last record read started on, starting at 1.
+	 */
+	public int getLineNumber() {
+		return recordLineNumber;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private int read() throws IOException {
+
+		if (position == limit && !fill()) {
+			return -1;
+		}
+
+		return buffer[position++];
+
+	}
+
+	private int peek() throws IOException {
+
+		if (position == limit && !fill()) {
+			return -1;
+		}
+
+		return buffer[position];
+
+	}
+
+	private boolean fill() throws IOException {
+
+		int count = reader.read(buffer, 0, buffer.length);
+
+		if (count <= 0) {
+			return false;
+		}
+
+		position = 0;
+		limit = count;
+
+		return true;
+
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.nextlabs.hb.helper;
+
+/**
+ * An immutable, fully built snapshot of one data set as served to the Policy
+ * Controllers. Snapshots are built in the background and published by
+ * replacing the reference to the current snapshot, so a heartbeat always sees
+ * a generation together with the data of that generation.
+ *
+ * @param <R>
+ *            type of the rows kept to compute changes between snapshots.
+ */
+public class DataSnapshot<R> {
+
+	private final long generation;
+
+	private final long sourceTime;
+
+	private final long buildTime;
+
+	private byte[] data;
+
+	private final byte[] compactData;
+
+	private final R rows;
+
+	private final String hash;
+
+	/**
+	 * @param generation
+	 *            generation of the snapshot.
+	 * @param sourceTime
+	 *            version of the source the snapshot was built from, or -1 if
+	 *            not known.
+	 * @param buildTime
+	 *            time the snapshot was built.
+	 * @param data
+	 *            content of the data file, Java serialized, as sent to older
+	 *            Policy Controllers, or null to convert the compact data when
+	 *            first needed.
+	 * @param compactData
+	 *            content of the data file in the compact format, or null if
+	 *            not built.
+	 * @param rows
+	 *            rows of the snapshot, or null if not known.
+	 */
+	public DataSnapshot(long generation, long sourceTime, long buildTime,
+			byte[] data, byte[] compactData, R rows) {
+		this.generation = generation;
+		this.sourceTime = sourceTime;
+		this.buildTime = buildTime;
+		this.data = data;
+		this.compactData = compactData;
+		this.rows = rows;
+		this.hash = Utils.sha256(compactData != null ? compactData : data);
+	}
+
+	private DataSnapshot(DataSnapshot<R> snapshot, long sourceTime) {
+		this.generation = snapshot.generation;
+		this.sourceTime = sourceTime;
+		this.buildTime = snapshot.buildTime;
+		synchronized (snapshot) {
+			this.data = snapshot.data;
+		}
+		this.compactData = snapshot.compactData;
+		this.rows = snapshot.rows;
+		this.hash = snapshot.hash;
+	}
+
+	/**
+	 * @return the same snapshot, seen as built from the given version of the
+	 *         source. Used when a rebuild yields the same content.
+	 */
+	public DataSnapshot<R> withSourceTime(long sourceTime) {
+		return new DataSnapshot<R>(this, sourceTime);
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	public long getSourceTime() {
+		return sourceTime;
+	}
+
+	public long getBuildTime() {
+		return buildTime;
+	}
+
+	/**
+	 * @return content of the data file, Java serialized, or null if it could
+	 *         not be converted. Only older Policy Controllers read it, so it
+	 *         is converted from the compact data once one asks for it.
+	 */
+	public synchronized byte[] getData() {
+
+		if (data == null && compactData != null) {
+			data = Utils.toSerializedData(compactData);
+		}
+
+		return data;
+
+	}
+
+	public byte[] getCompactData() {
+		return compactData;
+	}
+
+	public R getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return SHA-256 of the content of the data file, or null if it could
+	 *         not be computed.
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+}
@@ -0,0 +1,190 @@
+package com.nextlabs.hb.helper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes row level changes between two snapshots of the data sent to the
+ * Policy Controllers. Rows are compared the way the Policy Controller stores
+ * them, i.e. lower case.
+ */
+public class DeltaHelper {
+
+	public static final String ADDED = "ADDED";
+
+	public static final String REMOVED = "REMOVED";
+
+	public static final String UPDATED = "UPDATED";
+
+	private static final char SEPARATOR = '\u0000';
+
+	/**
+	 * Computes the dictionary rows to add and remove to get from one snapshot
+	 * to the other, in one pass over both. The rows are returned in the same
+	 * record format as the full dictionary data.
+	 *
+	 * @return HashMap with the ADDED and REMOVED records, or null if sending
+	 *         the changes is not cheaper than sending the full data.
+	 */
+	public static HashMap<String, Object> getDictionaryDelta(
+			CompactDictionary fromRows, CompactDictionary toRows) {
+
+		ArrayList<HashMap<String, String>> added = new ArrayList<HashMap<String, String>>();
+		ArrayList<HashMap<String, String>> removed = new ArrayList<HashMap<String, String>>();
+
+		int from = 0;
+		int to = 0;
+
+		while (from < fromRows.size() || to < toRows.size()) {
+
+			if (added.size() + removed.size() >= toRows.size()) {
+				return null;
+			}
+
+			int order;
+
+			if (from == fromRows.size()) {
+				order = 1;
+			} else if (to == toRows.size()) {
+				order = -1;
+			} else {
+				order = fromRows.compareRow(from, toRows, to);
+			}
+
+			if (order < 0) {
+				removed.add(fromRows.toRecord(from++));
+			} else if (order > 0) {
+				added.add(toRows.toRecord(to++));
+			} else {
+				from++;
+				to++;
+			}
+
+		}
+
+		if (added.size() + removed.size() >= toRows.size()) {
+			return null;
+		}
+
+		HashMap<String, Object> delta = new HashMap<String, Object>();
+		delta.put(ADDED, added);
+		delta.put(REMOVED, removed);
+
+		return delta;
+
+	}
+
+	/**
+	 * Reduces LIC-LOA-ECCN data to the rows stored in the LOADB table, keyed
+	 * on its unique key (LICENSE, LOA, ECCN) and mapped to the EXPIRY and
+	 * EFFECTIVE dates. If the key occurs more than once, the first row is
+	 * kept, as the Policy Controller would reject the others.
+	 */
+	public static Map<String, String> getLicLoaEccnRows(
+			List<HashMap<String, String>> licLoaEccnData) {
+
+		Map<String, String> rows = new HashMap<String, String>(
+				licLoaEccnData.size() * 2);
+
+		/*
+		 * Few distinct date pairs, keep one instance of each.
+		 */
+		Map<String, String> dates = new HashMap<String, String>();
+
+		for (HashMap<String, String> record : licLoaEccnData) {
+
+			String key = record.get("LICENSE").toLowerCase() + SEPARATOR
+					+ record.get("LOA").toLowerCase() + SEPARATOR
+					+ record.get("ECCN").toLowerCase();
+
+			if (!rows.containsKey(key)) {
+
+				String value = record.get("EXPIRY") + SEPARATOR
+						+ record.get("EFFECTIVE");
+				String shared = dates.get(value);
+
+				if (shared == null) {
+					dates.put(value, value);
+					shared = value;
+				}
+
+				rows.put(key, shared);
+
+			}
+
+		}
+
+		return rows;
+
+	}
+
+	/**
+	 * Computes the LIC-LOA-ECCN rows to insert, delete and update the dates of
+	 * to get from one snapshot to the other. The rows are returned in the same
+	 * record format as the full LIC-LOA-ECCN data.
+	 *
+	 * @return HashMap with the ADDED, REMOVED and UPDATED records, or null if
+	 *         sending the changes is not cheaper than sending the full data.
+	 */
+	public static HashMap<String, Object> getLicLoaEccnDelta(
+			Map<String, String> fromRows, Map<String, String> toRows) {
+
+		ArrayList<HashMap<String, String>> added = new ArrayList<HashMap<String, String>>();
+		ArrayList<HashMap<String, String>> removed = new ArrayList<HashMap<String, String>>();
+		ArrayList<HashMap<String, String>> updated = new ArrayList<HashMap<String, String>>();
+
+		for (Map.Entry<String, String> row : toRows.entrySet()) {
+
+			String fromDates = fromRows.get(row.getKey());
+
+			if (fromDates == null) {
+				added.add(toLicLoaEccnRecord(row.getKey(), row.getValue()));
+			} else if (!fromDates.equals(row.getValue())) {
+				updated.add(toLicLoaEccnRecord(row.getKey(), row.getValue()));
+			}
+
+		}
+
+		for (String key : fromRows.keySet()) {
+			if (!toRows.containsKey(key)) {
+				removed.add(toLicLoaEccnRecord(key, null));
+			}
+		}
+
+		if (added.size() + removed.size() + updated.size() >= toRows.size()) {
+			return null;
+		}
+
+		HashMap<String, Object> delta = new HashMap<String, Object>();
+		delta.put(ADDED, added);
+		delta.put(REMOVED, removed);
+		delta.put(UPDATED, updated);
+
+		return delta;
+
+	}
+
+	private static HashMap<String, String> toLicLoaEccnRecord(String key,
+			String dates) {
+
+		int first = key.indexOf(SEPARATOR);
+		int second = key.indexOf(SEPARATOR, first + 1);
+
+		HashMap<String, String> record = new HashMap<String, String>();
+		record.put("LICENSE", key.substring(0, first));
+		record.put("LOA", key.substring(first + 1, second));
+		record.put("ECCN", key.substring(second + 1));
+
+		if (dates != null) {
+			int index = dates.indexOf(SEPARATOR);
+			record.put("EXPIRY", dates.substring(0, index));
+			record.put("EFFECTIVE", dates.substring(index + 1));
+		}
+
+		return record;
+
+	}
+
+}
@@ -2,10 +2,24 @@ package com.nextlabs.hb.helper;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -18,12 +32,36 @@ import com.bluejungle.dictionary.IElementField;
 import com.bluejungle.dictionary.IElementType;
 import com.bluejungle.dictionary.IEnrollment;
 import com.bluejungle.framework.comp.ComponentManagerFactory;
+import com.bluejungle.framework.expressions.BooleanOp;
+import com.bluejungle.framework.expressions.CompositePredicate;
 import com.bluejungle.framework.expressions.IPredicate;
 
 public class DictionaryData {
 
 	private static final Log LOG = LogFactory.getLog(DictionaryData.class);
 
+	/* Records of the last extraction by enrollment, and the consistent time
+	 * they were read at. Guarded by the class lock. */
+	private static Map<String, EnrollmentUsers> cachedUsers;
+
+	private static final AtomicLong versions = new AtomicLong();
+
+	private static Date cachedTime;
+
+	private static long lastFullExtraction;
+
+	/* Resolved fields by enrollment, and the dictionary and user type they
+	 * were resolved with. Guarded by the class lock. */
+	private static final Map<String, EnrollmentFields> cachedFields = new HashMap<String, EnrollmentFields>();
+
+	private static Dictionary cachedDictionary;
+
+	private static IElementType userType;
+
+	/* Properties naming the only fields the server reads. */
+	private static final String[] PROJECTED_FIELDS = { "userid_dict_field",
+			"loa_dict_field", "license_dict_field" };
+
 	public Date getLatestConsistentTime() {
 
 		try {
@@ -37,146 +75,512 @@ public class DictionaryData {
 
 	}
 
-	public static List<HashMap<String, String>> getUserData() {
-
-		List<HashMap<String, String>> userData = null;
-		IDictionaryIterator<ElementFieldData> efdList = null;
+	/**
+	 * Reads the user records of all active enrollments. Enrollments are
+	 * queried concurrently, at most dictionary_extraction_threads at a time.
+	 *
+	 * After a full extraction, only the users changed since the consistent
+	 * time of the previous extraction are read and merged into the records
+	 * kept from it. Every dictionary_full_rebuild_interval seconds all users
+	 * are read again, which also drops users deleted in the meantime.
+	 *
+	 * The records are kept and returned per enrollment. An enrollment whose
+	 * records did not change keeps its version.
+	 *
+	 * @return the records of each active enrollment, or null if the
+	 *         dictionary could not be read completely.
+	 */
+	public static synchronized List<EnrollmentUsers> getEnrollmentUsers() {
+
+		ExecutorService executor = null;
 
 		try {
 
 			LOG.debug("Accessing Dictionary Database.");
 
-			Dictionary dict = ComponentManagerFactory.getComponentManager()
+			final Dictionary dict = ComponentManagerFactory.getComponentManager()
 					.getComponent(Dictionary.COMP_INFO);
 			Collection<IEnrollment> enrollments = dict.getEnrollments();
-			userData = new ArrayList<HashMap<String, String>>();
 
-			for (IEnrollment enroll : enrollments) {
+			final Date ct = dict.getLatestConsistentTime();
+
+			LOG.info("Latest dictionary consistent time - " + ct.toString());
+
+			long fullRebuildInterval = PropertyLoader.getLongProperty(
+					PluginConstants.pluginProps,
+					"dictionary_full_rebuild_interval", 3600) * 1000;
+
+			final boolean full = cachedTime == null
+					|| fullRebuildInterval <= 0
+					|| System.currentTimeMillis() - lastFullExtraction >= fullRebuildInterval;
+
+			if (full) {
+				LOG.info("Reading all users.");
+			} else {
+				LOG.info("Reading users changed since " + cachedTime + ".");
+			}
+
+			final Date from = cachedTime;
+
+			if (dict != cachedDictionary) {
+				cachedFields.clear();
+				userType = dict.getType("USER");
+				cachedDictionary = dict;
+			}
+
+			Set<String> activeDomains = new HashSet<String>();
+
+			List<String> domains = new ArrayList<String>();
+			final List<EnrollmentUsers> results = new ArrayList<EnrollmentUsers>();
+			List<Callable<Void>> extractions = new ArrayList<Callable<Void>>();
+
+			for (final IEnrollment enroll : enrollments) {
 
 				if (enroll.getIsActive()) {
 
-					Date ct = dict.getLatestConsistentTime();
+					final int index = domains.size();
+					final EnrollmentFields fields = getEnrollmentFields(enroll);
+					final EnrollmentUsers cached = cachedUsers == null ? null
+							: cachedUsers.get(enroll.getDomainName());
+
+					domains.add(enroll.getDomainName());
+					activeDomains.add(enroll.getDomainName());
+					results.add(null);
+
+					extractions.add(new Callable<Void>() {
+
+						public Void call() throws Exception {
+							results.set(index, extractEnrollment(dict, enroll,
+									fields, ct, full || cached == null ? null
+											: from, cached));
+							return null;
+						}
+
+					});
+
+				}
 
-					LOG.info("Latest dictionary consistent time - "
-							+ dict.getLatestConsistentTime().toString());
+			}
 
-					IElementType eType = dict.getType("USER");
-					IPredicate ipred = dict.condition(eType);
+			cachedFields.keySet().retainAll(activeDomains);
 
-					String[] sProperties = enroll.getExternalNames(eType);
+			int threads = (int) Math.min(extractions.size(), Math.max(1,
+					PropertyLoader.getLongProperty(PluginConstants.pluginProps,
+							"dictionary_extraction_threads", 1)));
 
-					int spropertylength = sProperties.length;
+			if (threads <= 1) {
 
-					ipred = dict.condition(enroll);
+				for (Callable<Void> extraction : extractions) {
+					extraction.call();
+				}
 
-					LOG.debug("Querying enrollment.");
+			} else {
 
-					IElementField[] iefArray = new IElementField[spropertylength];
+				LOG.info("Querying " + extractions.size()
+						+ " enrollments on " + threads + " threads.");
 
-					for (int i = 0; i < spropertylength; i++) {
+				executor = Executors.newFixedThreadPool(threads,
+						new ThreadFactory() {
 
-						iefArray[i] = enroll.lookupField(eType, sProperties[i])[0];
+							private final AtomicInteger count = new AtomicInteger();
+
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r,
+										"DictionaryExtraction-"
+												+ count.incrementAndGet());
+								thread.setDaemon(true);
+								return thread;
+							}
 
+						});
+
+				/*
+				 * Wait for all enrollments before reporting a failure, so that
+				 * no query is still running when this returns.
+				 */
+				Exception failure = null;
+
+				for (Future<Void> extraction : executor.invokeAll(extractions)) {
+
+					try {
+						extraction.get();
+					} catch (ExecutionException e) {
+						failure = e;
 					}
 
-					efdList = dict.queryFields(iefArray, ipred, ct, null, null);
+				}
+
+				if (failure != null) {
+					throw failure;
+				}
 
-					if (efdList != null) {
+			}
 
-						while (efdList.hasNext()) {
+			/*
+			 * Only enrollments still active are kept.
+			 */
+			Map<String, EnrollmentUsers> users = new HashMap<String, EnrollmentUsers>();
 
-							ElementFieldData efd = efdList.next();
+			for (int i = 0; i < domains.size(); i++) {
+				users.put(domains.get(i), results.get(i));
+			}
 
-							HashMap<String, String> record = new HashMap<String, String>();
-							
-							record.put("Enrollment", enroll.getDomainName());
+			cachedUsers = users;
+			cachedTime = ct;
 
-							Object[] data = efd.getData();
+			if (full) {
+				lastFullExtraction = System.currentTimeMillis();
+			}
 
-							for (int i = 0; i < spropertylength; i++) {
+			return results;
 
-								if (data[i] != null) {
+		} catch (Exception ex) {
 
-									if (!(data[i].getClass().isArray())) {
+			LOG.error("Exception in getEnrollmentUsers - ", ex);
+			return null;
 
-										record.put(sProperties[i],
+		} finally {
 
-										data[i].toString());
+			if (executor != null) {
+				executor.shutdownNow();
+			}
 
-									} else {
+		}
 
-										String separator = PluginConstants.commonProps
+	}
 
-										.getProperty(sProperties[i]
+	/**
+	 * Reads the user records of one enrollment. The iterator over the
+	 * enrollment is always closed.
+	 *
+	 * @param from
+	 *            consistent time of the cached records, to read only the
+	 *            users changed since, or null to read all users.
+	 * @param cached
+	 *            records of the enrollment read last time, or null.
+	 * @return the records of the enrollment at the given time. These are the
+	 *         cached records if nothing changed.
+	 */
+	private static EnrollmentUsers extractEnrollment(Dictionary dict,
+			IEnrollment enroll, EnrollmentFields fields, Date ct, Date from,
+			EnrollmentUsers cached) throws DictionaryException {
+
+		String[] sProperties = fields.names;
+
+		/*
+		 * Changed users can only be merged into records of the same fields.
+		 */
+		if (from != null
+				&& !Arrays.equals(cached.getFieldNames(), sProperties)) {
+
+			LOG.info("Fields of enrollment " + enroll.getDomainName()
+					+ " changed. Reading all users.");
+			from = null;
 
-										+ "_separator");
+		}
 
-										if (separator != null) {
+		Map<String, Object[]> users = new LinkedHashMap<String, Object[]>();
 
-											StringBuffer value = new StringBuffer();
+		if (from != null) {
+			users.putAll(cached.getUsers());
+		}
 
-											Object[] datas = (Object[]) data[i];
+		int spropertylength = sProperties.length;
 
-											for (Object st : datas) {
+		if (spropertylength == 0) {
 
-												value.append(st.toString());
+			LOG.info("Enrollment " + enroll.getDomainName()
+					+ " maps none of the configured fields.");
+			return toEnrollmentUsers(enroll, sProperties, users, cached);
 
-												value.append(separator);
+		}
 
-											}
+		IPredicate ipred = dict.condition(enroll);
 
-											record.put(sProperties[i],
+		if (from != null) {
 
-											value.toString());
+			List<IPredicate> parts = new ArrayList<IPredicate>(2);
+			parts.add(ipred);
+			parts.add(dict.changedCondition(from, ct));
+			ipred = new CompositePredicate(BooleanOp.AND, parts);
 
-										} else {
+		}
 
-											Object[] datas = (Object[]) data[i];
+		LOG.debug("Querying enrollment " + enroll.getDomainName() + ".");
 
-											record.put(sProperties[i],
+		IDictionaryIterator<ElementFieldData> efdList = dict.queryFields(
+				fields.fields, ipred, ct, null, null);
+
+		if (efdList == null) {
+
+			LOG.info("User list is NULL.");
+			return toEnrollmentUsers(enroll, sProperties, users, cached);
+
+		}
 
-											datas[0].toString());
+		String userIdFieldName = PluginConstants.commonProps
+				.getProperty("userid_dict_field");
+		int userIdIndex = Arrays.asList(sProperties).indexOf(userIdFieldName);
+		int changed = 0;
 
-										}
+		/*
+		 * Values other than user IDs repeat across users, each is kept once.
+		 */
+		Map<String, String> values = new HashMap<String, String>();
 
+		try {
+
+			while (efdList.hasNext()) {
+
+				ElementFieldData efd = efdList.next();
+
+				Object[] record = new Object[spropertylength];
+
+				Object[] data = efd.getData();
+
+				for (int i = 0; i < spropertylength; i++) {
+
+					if (data[i] != null) {
+
+						if (!(data[i].getClass().isArray())) {
+
+							record[i] = i == userIdIndex ? data[i].toString()
+									: intern(values, data[i].toString());
+
+						} else {
+
+							String separator = PluginConstants.commonProps
+									.getProperty(sProperties[i] + "_separator");
+
+							/*
+							 * Fields with a separator configured are multi
+							 * valued and kept as a list of their values.
+							 */
+							if (separator != null) {
+
+								Object[] datas = (Object[]) data[i];
+
+								List<String> elements = new ArrayList<String>(
+										datas.length);
+
+								for (Object st : datas) {
+
+									if (st != null) {
+										elements.add(intern(values,
+												st.toString()));
 									}
 
 								}
 
-							}
+								record[i] = Collections
+										.unmodifiableList(elements);
 
-							userData.add(record);
+							} else {
 
-						}
+								Object[] datas = (Object[]) data[i];
 
-					}
+								record[i] = i == userIdIndex ? datas[0]
+										.toString() : intern(values, datas[0]
+										.toString());
 
-					else {
+							}
 
-						LOG.info("User list is NULL.");
+						}
 
 					}
 
 				}
 
-			}
+				/*
+				 * Users are keyed on their user ID. Records without one can
+				 * not be matched with later changes and are kept apart.
+				 */
+				String userId = userIdIndex < 0 ? null : EnrollmentUsers
+						.getValue(record[userIdIndex]);
+				String key;
+
+				if (userId != null) {
+					key = userId.toLowerCase();
+				} else {
+					int n = users.size();
+					do {
+						key = "\u0000" + n++;
+					} while (users.containsKey(key));
+				}
 
-		} catch (Exception ex) {
+				users.put(key, record);
+				changed++;
 
-			LOG.error("Exception in getUserData - ", ex);
+			}
 
 		} finally {
-			if (efdList != null)
-				try {
-					efdList.close();
-				} catch (DictionaryException e) {
-					LOG.error("Dictionary Exception while closing iterator. ",
-							e);
-				}
+
+			try {
+				efdList.close();
+			} catch (DictionaryException e) {
+				LOG.error("Dictionary Exception while closing iterator. ", e);
+			}
+
 			LOG.debug("Closed iterator.");
+
+		}
+
+		if (from != null) {
+			LOG.info("Enrollment " + enroll.getDomainName() + " : " + changed
+					+ " users changed.");
+		}
+
+		return toEnrollmentUsers(enroll, sProperties, users, cached);
+
+	}
+
+	/**
+	 * Keeps the cached records, and their version, if the records read are
+	 * the same.
+	 */
+	private static EnrollmentUsers toEnrollmentUsers(IEnrollment enroll,
+			String[] fieldNames, Map<String, Object[]> users,
+			EnrollmentUsers cached) {
+
+		if (cached != null && cached.hasUsers(fieldNames, users)) {
+			return cached;
+		}
+
+		return new EnrollmentUsers(enroll.getDomainName(),
+				versions.incrementAndGet(), fieldNames, users);
+
+	}
+
+	/**
+	 * @return the instance of the value kept in the given values.
+	 */
+	private static String intern(Map<String, String> values, String value) {
+
+		String shared = values.get(value);
+
+		if (shared == null) {
+			values.put(value, value);
+			shared = value;
+		}
+
+		return shared;
+
+	}
+
+	/**
+	 * Gets the fields of an enrollment to query, resolving them again only
+	 * when the fields the enrollment maps or the fields wanted have changed.
+	 */
+	private static EnrollmentFields getEnrollmentFields(IEnrollment enroll)
+			throws DictionaryException {
+
+		String[] externalNames = enroll.getExternalNames(userType);
+		Set<String> wanted = getWantedFields();
+
+		EnrollmentFields fields = cachedFields.get(enroll.getDomainName());
+
+		if (fields != null && Arrays.equals(fields.externalNames, externalNames)
+				&& (wanted == null ? fields.wanted == null : wanted
+						.equals(fields.wanted))) {
+			return fields;
+		}
+
+		String[] names = getQueriedFields(externalNames, wanted);
+		IElementField[] iefArray = new IElementField[names.length];
+
+		for (int i = 0; i < names.length; i++) {
+
+			iefArray[i] = enroll.lookupField(userType, names[i])[0];
+
+		}
+
+		LOG.info("Resolved " + names.length + " fields of enrollment "
+				+ enroll.getDomainName() + ".");
+
+		fields = new EnrollmentFields(externalNames.clone(), wanted, names,
+				iefArray);
+		cachedFields.put(enroll.getDomainName(), fields);
+
+		return fields;
+
+	}
+
+	/**
+	 * Gets the fields of an enrollment to query. Unless
+	 * dictionary_field_projection is false, these are only the fields named
+	 * by userid_dict_field, loa_dict_field and license_dict_field which the
+	 * enrollment maps, instead of every mapped field.
+	 *
+	 * @param wanted
+	 *            the fields to query if mapped, or null for all fields.
+	 */
+	private static String[] getQueriedFields(String[] externalNames,
+			Set<String> wanted) {
+
+		if (wanted == null) {
+			return externalNames;
 		}
 
-		return userData;
+		List<String> fields = new ArrayList<String>(wanted.size());
+
+		for (String externalName : externalNames) {
+			if (wanted.contains(externalName)) {
+				fields.add(externalName);
+			}
+		}
+
+		return fields.toArray(new String[fields.size()]);
+
+	}
+
+	/**
+	 * @return the fields named by the PROJECTED_FIELDS properties, or null if
+	 *         dictionary_field_projection is false.
+	 */
+	private static Set<String> getWantedFields() {
+
+		if ("false".equalsIgnoreCase(PluginConstants.pluginProps.getProperty(
+				"dictionary_field_projection", "true").trim())) {
+			return null;
+		}
+
+		Set<String> wanted = new HashSet<String>();
+
+		for (String property : PROJECTED_FIELDS) {
+
+			String fieldName = PluginConstants.commonProps.getProperty(property);
+
+			if (fieldName != null && !fieldName.isEmpty()) {
+				wanted.add(fieldName);
+			}
+
+		}
+
+		return wanted;
+
+	}
+
+	/**
+	 * The fields of an enrollment to query, and the external names and wanted
+	 * fields they were resolved from.
+	 */
+	private static final class EnrollmentFields {
+
+		final String[] externalNames;
+
+		final Set<String> wanted;
+
+		final String[] names;
+
+		final IElementField[] fields;
+
+		EnrollmentFields(String[] externalNames, Set<String> wanted,
+				String[] names, IElementField[] fields) {
+			this.externalNames = externalNames;
+			this.wanted = wanted;
+			this.names = names;
+			this.fields = fields;
+		}
 
 	}
 
@@ -198,11 +602,13 @@ public class DictionaryData {
 
 			for (IEnrollment enroll : enrollments) {
 
-				// Only getting Active enrollment
+				// Only getting Active enrollment. The consistent time is the
+				// same for all of them, so one is enough.
 
 				if (enroll.getIsActive()) {
 
 					ct = new Timestamp(dict.getLatestConsistentTime().getTime());
+					break;
 
 				}
 
@@ -0,0 +1,199 @@
+package com.nextlabs.hb.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The user records of one enrollment as last read from the dictionary. The
+ * version changes only when the records do, so anything derived from the
+ * records of an enrollment can be kept until its version changes.
+ *
+ * A record is the array of the values of the fields queried, in the order of
+ * the field names of the enrollment. A value is a String, a list of Strings
+ * for a multi valued field, or null.
+ */
+public class EnrollmentUsers {
+
+	private final String domainName;
+
+	private final long version;
+
+	private final String[] fieldNames;
+
+	private final Map<String, Object[]> users;
+
+	/**
+	 * @param domainName
+	 *            domain name of the enrollment.
+	 * @param version
+	 *            version of the records.
+	 * @param fieldNames
+	 *            names of the fields of the records.
+	 * @param users
+	 *            records by user, not to be modified any more.
+	 */
+	public EnrollmentUsers(String domainName, long version,
+			String[] fieldNames, Map<String, Object[]> users) {
+		this.domainName = domainName;
+		this.version = version;
+		this.fieldNames = fieldNames;
+		this.users = users;
+	}
+
+	public String getDomainName() {
+		return domainName;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public String[] getFieldNames() {
+		return fieldNames;
+	}
+
+	public Map<String, Object[]> getUsers() {
+		return users;
+	}
+
+	public Collection<Object[]> getRecords() {
+		return users.values();
+	}
+
+	/**
+	 * @return true if these are the given records with the given fields.
+	 */
+	public boolean hasUsers(String[] fieldNames, Map<String, Object[]> users) {
+
+		if (!Arrays.equals(this.fieldNames, fieldNames)
+				|| this.users.size() != users.size()) {
+			return false;
+		}
+
+		for (Map.Entry<String, Object[]> user : users.entrySet()) {
+			if (!Arrays.equals(user.getValue(), this.users.get(user.getKey()))) {
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * @return the position of a field in the records, or -1.
+	 */
+	public int indexOf(String field) {
+
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (fieldNames[i].equals(field)) {
+				return i;
+			}
+		}
+
+		return -1;
+
+	}
+
+	/**
+	 * @return the value of a field of a record, the first value if the field
+	 *         is multi valued, or null.
+	 */
+	public String getValue(Object[] record, String field) {
+
+		int index = indexOf(field);
+
+		return index < 0 ? null : getValue(record[index]);
+
+	}
+
+	/**
+	 * @return the value, the first value if it is multi valued, or null.
+	 */
+	public static String getValue(Object value) {
+
+		if (value instanceof List) {
+			List<?> values = (List<?>) value;
+			return values.isEmpty() ? null : (String) values.get(0);
+		}
+
+		return (String) value;
+
+	}
+
+	/**
+	 * Gets the values of a field of a record, trimmed and without empty
+	 * values. A single valued field may hold several values separated by
+	 * '|'.
+	 *
+	 * @return the values, empty if the field has none.
+	 */
+	public List<String> getValues(Object[] record, String field) {
+
+		int index = indexOf(field);
+
+		if (index < 0 || record[index] == null) {
+			return Collections.emptyList();
+		}
+
+		Object value = record[index];
+		List<String> values = new ArrayList<String>();
+
+		if (value instanceof List) {
+
+			for (Object element : (List<?>) value) {
+				String text = (String) element;
+				addValue(values, text, 0, text.length());
+			}
+
+		} else {
+
+			String text = (String) value;
+			int start = 0;
+			int end;
+
+			while ((end = text.indexOf('|', start)) >= 0) {
+				addValue(values, text, start, end);
+				start = end + 1;
+			}
+
+			addValue(values, text, start, text.length());
+
+		}
+
+		return values;
+
+	}
+
+	/**
+	 * @return the record as text, for the logs.
+	 */
+	public String toString(Object[] record) {
+
+		StringBuilder text = new StringBuilder("{Enrollment=").append(domainName);
+
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (record[i] != null) {
+				text.append(", ").append(fieldNames[i]).append('=').append(
+						record[i]);
+			}
+		}
+
+		return text.append('}').toString();
+
+	}
+
+	private static void addValue(List<String> values, String text, int start,
+			int end) {
+
+		if (end > start) {
+			values.add(text.substring(start, end).trim());
+		}
+
+	}
+
+}
@@ -0,0 +1,295 @@
+package com.nextlabs.hb.helper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes the validation errors of one data build to an error log file. The
+ * lines are written by a thread of the report through a bounded queue, so
+ * that the build neither waits for the file nor keeps the whole report in
+ * memory.
+ *
+ * Each error is one line of the form
+ *
+ * <pre>
+ * ERROR | category | location | message
+ * </pre>
+ *
+ * and the report ends with one line per category,
+ *
+ * <pre>
+ * SUMMARY | category | count errors, written written
+ * </pre>
+ *
+ * or "No error found.". Only the first categoryLimit errors of a category are
+ * written and logged, the others are only counted. Errors which do not fit
+ * into the queue are dropped and counted as well.
+ *
+ * Errors are reported from one thread, the report is not thread safe. A
+ * report for the same file must only be started once the previous one has
+ * been written, see awaitWritten.
+ */
+public class ErrorReport {
+
+	private static final Log LOG = LogFactory.getLog(ErrorReport.class);
+
+	private static final String END = new String("END");
+
+	private final File file;
+
+	private final int categoryLimit;
+
+	private final BlockingQueue<String> lines;
+
+	private final Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+
+	private int dropped;
+
+	private volatile boolean closed;
+
+	private final Thread writer;
+
+	/**
+	 * An error as reported, to be reported again without validating again.
+	 */
+	public static final class Entry {
+
+		private final String category;
+
+		private final String location;
+
+		private final String message;
+
+		public Entry(String category, String location, String message) {
+			this.category = category;
+			this.location = location;
+			this.message = message;
+		}
+
+	}
+
+	/**
+	 * Starts a report, replacing the file.
+	 *
+	 * @param categoryLimit
+	 *            number of errors of a category to write.
+	 * @param queueSize
+	 *            number of lines which may wait to be written.
+	 */
+	public ErrorReport(File file, int categoryLimit, int queueSize) {
+
+		this.file = file;
+		this.categoryLimit = categoryLimit;
+		this.lines = new ArrayBlockingQueue<String>(Math.max(1, queueSize));
+
+		writer = new Thread(new Runnable() {
+
+			public void run() {
+				write();
+			}
+
+		}, "ErrorReport-" + file.getName());
+
+		writer.setDaemon(true);
+		writer.start();
+
+	}
+
+	/**
+	 * Adds a line of information, such as the time of the build, before the
+	 * errors.
+	 */
+	public void info(String text) {
+		enqueue(text);
+	}
+
+	/**
+	 * Reports an error, logging it too.
+	 */
+	public Entry error(String category, String location, String message) {
+
+		Entry entry = new Entry(category, location, message);
+		add(entry, true);
+
+		return entry;
+
+	}
+
+	/**
+	 * Reports an error.
+	 *
+	 * @param log
+	 *            whether to log the error too, false if it has been logged
+	 *            already.
+	 */
+	public void add(Entry entry, boolean log) {
+
+		int[] count = counts.get(entry.category);
+
+		if (count == null) {
+			count = new int[2];
+			counts.put(entry.category, count);
+		}
+
+		count[0]++;
+
+		if (count[0] > categoryLimit) {
+			return;
+		}
+
+		if (log) {
+			LOG.error("DHBP : " + entry.location + " : " + entry.message);
+		}
+
+		if (enqueue("ERROR | " + entry.category + " | " + entry.location
+				+ " | " + entry.message)) {
+			count[1]++;
+		}
+
+		if (count[0] == categoryLimit && log) {
+			LOG.error("DHBP : " + "Not logging further " + entry.category + " errors.");
+		}
+
+	}
+
+	/**
+	 * @return true if an error has been reported.
+	 */
+	public boolean hasErrors() {
+		return !counts.isEmpty();
+	}
+
+	/**
+	 * Ends the report with the number of errors per category. The file is
+	 * written completely in the background.
+	 */
+	public void close() {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		try {
+
+			if (counts.isEmpty()) {
+				lines.put("No error found.");
+			}
+
+			for (Map.Entry<String, int[]> count : counts.entrySet()) {
+				lines.put("SUMMARY | " + count.getKey() + " | "
+						+ count.getValue()[0] + " errors, "
+						+ count.getValue()[1] + " written");
+			}
+
+			if (dropped > 0) {
+				lines.put("SUMMARY | DROPPED | " + dropped
+						+ " errors not written, the report queue was full");
+			}
+
+			lines.put(END);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			writer.interrupt();
+		}
+
+	}
+
+	/**
+	 * Closes the report if it is not closed yet and waits until the file has
+	 * been written completely.
+	 */
+	public void awaitWritten() {
+
+		close();
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	private boolean enqueue(String line) {
+
+		if (lines.offer(line)) {
+			return true;
+		}
+
+		dropped++;
+		return false;
+
+	}
+
+	/**
+	 * Takes the lines until the end of the report. The queue is drained even
+	 * if the file can not be written, so that the build never blocks.
+	 */
+	private void write() {
+
+		Writer out = null;
+
+		try {
+			out = new BufferedWriter(new FileWriter(file.getAbsoluteFile()));
+		} catch (IOException e) {
+			LOG.error("DHBP : " + "Error writing error log file at : " + file + ".", e);
+		}
+
+		try {
+
+			String line;
+
+			while ((line = lines.take()) != END) {
+
+				if (out == null) {
+					continue;
+				}
+
+				try {
+					out.write(line);
+					out.write("\r\n");
+				} catch (IOException e) {
+					LOG.error("DHBP : " + "Error writing error log file at : " + file
+							+ ".", e);
+					close(out);
+					out = null;
+				}
+
+			}
+
+		} catch (InterruptedException e) {
+			LOG.error("DHBP : " + "Error log file at : " + file + " is incomplete.");
+		} finally {
+			close(out);
+		}
+
+	}
+
+	private void close(Writer out) {
+
+		if (out == null) {
+			return;
+		}
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			LOG.error("DHBP : " + "Error closing error log file at : " + file + ".", e);
+		}
+
+	}
+
+}
@@ -0,0 +1,147 @@
+package com.nextlabs.hb.helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Watches a single file for changes with a WatchService on its directory and
+ * runs a callback when the file is created, modified or replaced. The
+ * callback runs on the watcher thread and should only hand the work off.
+ */
+public class FileWatcher implements Closeable {
+
+	private static final Log LOG = LogFactory.getLog(FileWatcher.class);
+
+	private final File file;
+
+	private final Runnable onChange;
+
+	private WatchService watchService;
+
+	public FileWatcher(File file, Runnable onChange) {
+		this.file = file;
+		this.onChange = onChange;
+	}
+
+	/**
+	 * Starts watching.
+	 *
+	 * @return false if the file can not be watched, in which case it has to
+	 *         be polled.
+	 */
+	public boolean start() {
+
+		File directory = file.getAbsoluteFile().getParentFile();
+
+		if (directory == null || !directory.isDirectory()) {
+			LOG.error("Cannot watch " + file + ", directory does not exist.");
+			return false;
+		}
+
+		try {
+
+			watchService = FileSystems.getDefault().newWatchService();
+			directory.toPath().register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+
+		} catch (IOException e) {
+
+			LOG.error("Cannot watch " + file + ".", e);
+			close();
+			return false;
+
+		}
+
+		Thread thread = new Thread(new Runnable() {
+
+			public void run() {
+				watch();
+			}
+
+		}, "FileWatcher-" + file.getName());
+
+		thread.setDaemon(true);
+		thread.start();
+
+		LOG.info("Watching " + file + " for changes.");
+
+		return true;
+
+	}
+
+	public void close() {
+
+		if (watchService == null) {
+			return;
+		}
+
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			LOG.error("Error closing watch service.", e);
+		}
+
+	}
+
+	private void watch() {
+
+		Path name = file.toPath().getFileName();
+
+		try {
+
+			while (true) {
+
+				WatchKey key = watchService.take();
+				boolean changed = false;
+
+				for (WatchEvent<?> event : key.pollEvents()) {
+
+					/*
+					 * On overflow events were lost, the file may have changed.
+					 */
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW
+							|| name.equals(event.context())) {
+						changed = true;
+					}
+
+				}
+
+				if (changed) {
+
+					try {
+						onChange.run();
+					} catch (RuntimeException e) {
+						LOG.error("Error handling change of " + file + ".", e);
+					}
+
+				}
+
+				if (!key.reset()) {
+					LOG.error("Stopped watching " + file
+							+ ", directory is not accessible any more.");
+					return;
+				}
+
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// Closed, stop watching.
+		}
+
+	}
+
+}
@@ -1,9 +1,23 @@
 package com.nextlabs.hb.helper;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,6 +25,16 @@ import org.apache.commons.logging.LogFactory;
 import com.bluejungle.framework.crypt.IDecryptor;
 import com.bluejungle.framework.crypt.ReversibleEncryptor;
 
+/**
+ * Hands out HSQL connections from a bounded pool. At most hsql_pool_size
+ * connections are open at a time; a caller waits up to hsql_pool_wait_time
+ * milliseconds for one to be returned. Idle connections are validated before
+ * they are handed out again.
+ *
+ * Closing a connection returns it to the pool, with auto-commit on again.
+ * Each pooled connection keeps up to hsql_statement_cache_size prepared
+ * statements by SQL, and closing one of those returns it to the cache.
+ */
 public class HSQLHelper {
 
 	private static final Log LOG = LogFactory.getLog(HSQLHelper.class);
@@ -22,6 +46,27 @@ public class HSQLHelper {
 
 	private IDecryptor decryptor = new ReversibleEncryptor();
 
+	private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<PooledConnection>();
+
+	private final Semaphore permits = new Semaphore(getPoolSize(), true);
+
+	private final long waitTime = PropertyLoader.getLongProperty(
+			PluginConstants.pluginProps, "hsql_pool_wait_time", 30000);
+
+	private final int statementCacheSize = (int) PropertyLoader
+			.getLongProperty(PluginConstants.pluginProps,
+					"hsql_statement_cache_size", 32);
+
+	private final AtomicInteger openConnections = new AtomicInteger();
+
+	private final AtomicLong borrowed = new AtomicLong();
+
+	private final AtomicLong totalWaitTime = new AtomicLong();
+
+	private final AtomicLong statementHits = new AtomicLong();
+
+	private final AtomicLong statementMisses = new AtomicLong();
+
 	public HSQLHelper(String connectionUrl, String userName, String password,
 			String dateFormat) {
 
@@ -65,18 +110,83 @@ public class HSQLHelper {
 
 	}
 
+	private static int getPoolSize() {
+		return (int) Math.max(1, PropertyLoader.getLongProperty(
+				PluginConstants.pluginProps, "hsql_pool_size", 4));
+	}
+
+	/**
+	 * Gets a connection from the pool, opening one if none is idle.
+	 *
+	 * @return the connection, to be closed by the caller, or null if none
+	 *         could be had.
+	 */
 	public Connection openConnection() {
-		Connection hsqlConnection = null;
+
+		final long start = System.nanoTime();
+
 		try {
-			hsqlConnection = DriverManager.getConnection(connectionUrl,
-					userName, password);
-			hsqlConnection.setAutoCommit(true);
-			LOG.info(" Connection Established with HSQL");
-		} catch (SQLException e) {
-			LOG.error("HSQLHelper connectToHsql() error: ", e);
+
+			if (!permits.tryAcquire(waitTime, TimeUnit.MILLISECONDS)) {
+				LOG.error("HSQLHelper connectToHsql() error: no connection available after "
+						+ waitTime + " ms.");
+				return null;
+			}
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
 			return null;
+
 		}
-		return hsqlConnection;
+
+		final long wait = System.nanoTime() - start;
+
+		borrowed.incrementAndGet();
+		totalWaitTime.addAndGet(wait);
+
+		PooledConnection pooled;
+
+		while ((pooled = idle.poll()) != null) {
+
+			if (pooled.isValid()) {
+				break;
+			}
+
+			LOG.info("Discarding invalid HSQL connection.");
+			pooled.closePhysical();
+
+		}
+
+		if (pooled == null) {
+
+			try {
+
+				Connection hsqlConnection = DriverManager.getConnection(
+						connectionUrl, userName, password);
+				hsqlConnection.setAutoCommit(true);
+				pooled = new PooledConnection(hsqlConnection);
+				openConnections.incrementAndGet();
+
+				LOG.info(" Connection Established with HSQL");
+
+			} catch (SQLException e) {
+
+				permits.release();
+				LOG.error("HSQLHelper connectToHsql() error: ", e);
+				return null;
+
+			}
+
+		}
+
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Borrowed HSQL connection after " + wait / 1000000
+					+ " ms. " + getMetrics());
+		}
+
+		return pooled.borrow();
+
 	}
 
 	public void closeConnection(Connection hsqlConnection) {
@@ -88,4 +198,304 @@ public class HSQLHelper {
 		}
 	}
 
+	/**
+	 * @return number of physical connections open.
+	 */
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	/**
+	 * @return number of open connections not in use.
+	 */
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	/**
+	 * @return average time in ms callers waited for a connection.
+	 */
+	public double getAverageWaitTime() {
+
+		long count = borrowed.get();
+
+		return count == 0 ? 0 : totalWaitTime.get() / 1000000.0 / count;
+
+	}
+
+	public String getMetrics() {
+		return "HSQL pool : " + getOpenConnections() + " open, "
+				+ getIdleConnections() + " idle, " + borrowed.get()
+				+ " borrowed, average wait " + getAverageWaitTime()
+				+ " ms, statement cache hits " + statementHits.get()
+				+ ", misses " + statementMisses.get() + ".";
+	}
+
+	/**
+	 * Gives the connection back to the pool, or closes it if it can not be
+	 * reset.
+	 */
+	private void release(PooledConnection pooled) {
+
+		try {
+
+			if (!pooled.connection.getAutoCommit()) {
+				pooled.connection.rollback();
+				pooled.connection.setAutoCommit(true);
+			}
+
+			idle.add(pooled);
+
+		} catch (SQLException e) {
+
+			LOG.error("HSQLHelper closeConnection() error: ", e);
+			pooled.closePhysical();
+
+		} finally {
+
+			permits.release();
+
+		}
+
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args)
+			throws Throwable {
+
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+
+	}
+
+	/**
+	 * A physical connection of the pool and its cached statements.
+	 */
+	private final class PooledConnection {
+
+		private final Connection connection;
+
+		private final Map<String, CachedStatement> statements;
+
+		PooledConnection(Connection connection) {
+
+			this.connection = connection;
+			this.statements = new LinkedHashMap<String, CachedStatement>(16,
+					0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, CachedStatement> eldest) {
+
+					if (size() <= statementCacheSize) {
+						return false;
+					}
+
+					eldest.getValue().evict();
+
+					return true;
+
+				}
+			};
+
+		}
+
+		boolean isValid() {
+
+			try {
+				return !connection.isClosed() && connection.isValid(2);
+			} catch (SQLException e) {
+				return false;
+			}
+
+		}
+
+		/**
+		 * @return a handle on the connection for one caller.
+		 */
+		Connection borrow() {
+
+			return (Connection) Proxy.newProxyInstance(
+					Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class },
+					new InvocationHandler() {
+
+						private boolean closed;
+
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws Throwable {
+
+							String name = method.getName();
+
+							if ("close".equals(name)) {
+								if (!closed) {
+									closed = true;
+									release(PooledConnection.this);
+								}
+								return null;
+							}
+
+							if ("isClosed".equals(name)) {
+								return Boolean.valueOf(closed);
+							}
+
+							if (closed) {
+								throw new SQLException("Connection is closed.");
+							}
+
+							if ("prepareStatement".equals(name)
+									&& args.length == 1) {
+								return prepareStatement((String) args[0]);
+							}
+
+							return HSQLHelper.invoke(connection, method, args);
+
+						}
+
+					});
+
+		}
+
+		private PreparedStatement prepareStatement(String sql)
+				throws SQLException {
+
+			CachedStatement cached = statements.get(sql);
+
+			if (cached == null || cached.inUse) {
+
+				statementMisses.incrementAndGet();
+
+				PreparedStatement statement = connection.prepareStatement(sql);
+
+				if (cached != null || statementCacheSize <= 0) {
+					return statement;
+				}
+
+				cached = new CachedStatement(statement);
+				statements.put(sql, cached);
+
+			} else {
+
+				statementHits.incrementAndGet();
+
+			}
+
+			cached.inUse = true;
+
+			return cached.handle();
+
+		}
+
+		void closePhysical() {
+
+			for (Iterator<CachedStatement> i = statements.values().iterator(); i
+					.hasNext();) {
+				i.next().closePhysical();
+				i.remove();
+			}
+
+			openConnections.decrementAndGet();
+
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOG.error("HSQLHelper closeConnection() error: ", e);
+			}
+
+		}
+
+	}
+
+	/**
+	 * A prepared statement kept by a pooled connection.
+	 */
+	private static final class CachedStatement {
+
+		private final PreparedStatement statement;
+
+		private boolean inUse;
+
+		private boolean evicted;
+
+		CachedStatement(PreparedStatement statement) {
+			this.statement = statement;
+		}
+
+		/**
+		 * Closes the statement once it is not in use any more.
+		 */
+		void evict() {
+
+			evicted = true;
+
+			if (!inUse) {
+				closePhysical();
+			}
+
+		}
+
+		/**
+		 * @return a handle on the statement for one caller, which clears the
+		 *         statement instead of closing it.
+		 */
+		PreparedStatement handle() {
+
+			return (PreparedStatement) Proxy.newProxyInstance(
+					PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class },
+					new InvocationHandler() {
+
+						private boolean closed;
+
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws Throwable {
+
+							String name = method.getName();
+
+							if ("close".equals(name)) {
+								if (!closed) {
+									closed = true;
+									inUse = false;
+									if (evicted) {
+										closePhysical();
+									} else {
+										statement.clearParameters();
+										statement.clearBatch();
+									}
+								}
+								return null;
+							}
+
+							if ("isClosed".equals(name)) {
+								return Boolean.valueOf(closed);
+							}
+
+							if (closed) {
+								throw new SQLException("Statement is closed.");
+							}
+
+							return HSQLHelper.invoke(statement, method, args);
+
+						}
+
+					});
+
+		}
+
+		void closePhysical() {
+
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				LOG.error("HSQLHelper close statement error: ", e);
+			}
+
+		}
+
+	}
+
 }
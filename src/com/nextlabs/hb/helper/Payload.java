@@ -0,0 +1,45 @@
+package com.nextlabs.hb.helper;
+
+/**
+ * A compressed heartbeat payload along with the flags telling the Policy
+ * Controller what it contains. For each data set the flag is YES (full data),
+ * DELTA (changes since the generation the Policy Controller holds) or NO.
+ */
+public class Payload {
+
+	private final String dictFile;
+
+	private final String loaFile;
+
+	private final byte[] data;
+
+	private final String hash;
+
+	public Payload(String dictFile, String loaFile, byte[] data) {
+		this.dictFile = dictFile;
+		this.loaFile = loaFile;
+		this.data = data;
+		this.hash = Utils.sha256(data);
+	}
+
+	public String getDictFile() {
+		return dictFile;
+	}
+
+	public String getLoaFile() {
+		return loaFile;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return SHA-256 of the data, which identifies the payload when it is
+	 *         sent in chunks.
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+}
@@ -0,0 +1,51 @@
+package com.nextlabs.hb.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds the zip sent in the "Data" entry of a heartbeat response in memory.
+ * Entries are either the content of data files or objects serialized on the
+ * fly.
+ */
+public class PayloadBuilder {
+
+	private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+	private final ZipOutputStream zos = new ZipOutputStream(bos);
+
+	public void addEntry(String name, byte[] data) throws IOException {
+
+		zos.putNextEntry(new ZipEntry(name));
+		zos.write(data);
+		zos.closeEntry();
+
+	}
+
+	public void addObject(String name, Serializable o) throws IOException {
+
+		zos.putNextEntry(new ZipEntry(name));
+
+		/*
+		 * Do not close the object stream, that would close the zip.
+		 */
+		ObjectOutputStream oos = new ObjectOutputStream(zos);
+		oos.writeObject(o);
+		oos.flush();
+
+		zos.closeEntry();
+
+	}
+
+	public byte[] toByteArray() throws IOException {
+
+		zos.close();
+		return bos.toByteArray();
+
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.nextlabs.hb.helper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps compressed heartbeat payloads in memory so that each one is built once
+ * per data version instead of once per heartbeat. Payloads are keyed by what
+ * they contain, including the generations of the data, so an entry never has
+ * to be invalidated; entries for old generations simply fall out of the cache.
+ */
+public class PayloadCache {
+
+	private static final Log LOG = LogFactory.getLog(PayloadCache.class);
+
+	private final Map<String, Payload> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	public PayloadCache(final int capacity) {
+
+		entries = new LinkedHashMap<String, Payload>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Payload> eldest) {
+				return size() > capacity;
+			}
+		};
+
+	}
+
+	public Payload get(String key) {
+
+		Payload payload;
+
+		synchronized (entries) {
+			payload = entries.get(key);
+		}
+
+		if (payload != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+
+		return payload;
+
+	}
+
+	public void put(String key, Payload payload) {
+
+		if (payload == null || payload.getData() == null) {
+			return;
+		}
+
+		synchronized (entries) {
+			entries.put(key, payload);
+		}
+
+		LOG.debug("Cached payload " + key + " of " + payload.getData().length
+				+ " bytes.");
+
+	}
+
+	public void clear() {
+
+		synchronized (entries) {
+			entries.clear();
+		}
+
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+}
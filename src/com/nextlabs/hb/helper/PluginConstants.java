@@ -24,6 +24,21 @@ public class PluginConstants {
 
 	public static final String PCINMEMDB = "DowLicenseDB";
 
+	/* Heartbeat protocol versions. Version 1 requests only carry a date. */
+	public static final int PROTOCOL_GENERATIONS = 2;
+
+	public static final int PROTOCOL_DICT_DELTA = 3;
+
+	public static final int PROTOCOL_LOA_DELTA = 4;
+
+	public static final int PROTOCOL_COMPACT_DATA = 5;
+
+	public static final int PROTOCOL_CONTENT_HASH = 6;
+
+	public static final int PROTOCOL_CHUNKED = 7;
+
+	public static final int PROTOCOL_VERSION = PROTOCOL_CHUNKED;
+
 	public static Properties commonProps;
 
 	public static Properties pluginProps;
@@ -32,7 +47,13 @@ public class PluginConstants {
 
 	public static String loaEccnFileName = "loaeccndata.bin";
 
+	public static String dictDeltaFileName = "dictdelta.bin";
+
+	public static String loaEccnDeltaFileName = "loaeccndelta.bin";
+
 	public static String compressedFileName = "data.zip";	 
+
+	public static String stagingFileName = "data.zip.part";
 	
 	public static String loaEccnCsvErrorLog = "licloaeccnerrors.log";
 	
@@ -45,4 +45,26 @@ public class PropertyLoader {
 		return result;
 	}
 
+	public static long getLongProperty(final Properties props,
+			final String name, final long defaultValue) {
+
+		if (props == null) {
+			return defaultValue;
+		}
+
+		final String value = props.getProperty(name);
+
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			LOG.error("Invalid value for " + name + " : " + value
+					+ ". Using default value of " + defaultValue + ".");
+			return defaultValue;
+		}
+	}
+
 }
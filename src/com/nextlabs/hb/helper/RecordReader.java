@@ -0,0 +1,177 @@
+package com.nextlabs.hb.helper;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads data records written by RecordWriter one at a time.
+ */
+public class RecordReader implements Closeable {
+
+	private final DataInputStream in;
+
+	private final Iterator<HashMap<String, String>> records;
+
+	private final List<String> strings = new ArrayList<String>();
+
+	public RecordReader(InputStream in) throws IOException {
+
+		this.in = new DataInputStream(
+				in instanceof BufferedInputStream ? in
+						: new BufferedInputStream(in));
+		this.records = null;
+
+		if (this.in.readInt() != RecordWriter.MAGIC) {
+			throw new IOException("Not a data record file.");
+		}
+
+		int version = this.in.readUnsignedByte();
+
+		if (version > RecordWriter.VERSION) {
+			throw new IOException("Unsupported data record file version "
+					+ version + ".");
+		}
+
+	}
+
+	private RecordReader(Iterator<HashMap<String, String>> records) {
+		this.in = null;
+		this.records = records;
+	}
+
+	/**
+	 * Opens a reader on records either in the format written by RecordWriter
+	 * or Java serialized as sent by older servers. Records in the former
+	 * format are decoded as they are read, Java serialized records can only
+	 * be read all at once.
+	 */
+	@SuppressWarnings("unchecked")
+	public static RecordReader open(InputStream in) throws IOException {
+
+		BufferedInputStream buffered = new BufferedInputStream(in);
+
+		buffered.mark(2);
+		int first = buffered.read();
+		int second = buffered.read();
+		buffered.reset();
+
+		if (first != 0xAC || second != 0xED) {
+			return new RecordReader(buffered);
+		}
+
+		try {
+
+			List<HashMap<String, String>> records = (List<HashMap<String, String>>) new ObjectInputStream(
+					buffered).readObject();
+
+			if (records == null) {
+				throw new IOException("Not a data record file.");
+			}
+
+			return new RecordReader(records.iterator());
+
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Not a data record file.", e);
+		}
+
+	}
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return the record, or null at the end of the stream.
+	 */
+	public HashMap<String, String> readRecord() throws IOException {
+
+		if (records != null) {
+			return records.hasNext() ? records.next() : null;
+		}
+
+		int tag = in.readUnsignedByte();
+
+		if (tag == RecordWriter.END) {
+			return null;
+		}
+
+		if (tag != RecordWriter.RECORD) {
+			throw new IOException("Corrupt data record file.");
+		}
+
+		int size = readNumber();
+
+		HashMap<String, String> record = new HashMap<String, String>(
+				size * 2);
+
+		for (int i = 0; i < size; i++) {
+			String name = readString();
+			record.put(name, readString());
+		}
+
+		return record;
+
+	}
+
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		}
+	}
+
+	private String readString() throws IOException {
+
+		int reference = readNumber();
+
+		if (reference == RecordWriter.NULL_STRING) {
+			return null;
+		}
+
+		if (reference == RecordWriter.NEW_STRING) {
+
+			byte[] bytes = new byte[readNumber()];
+			in.readFully(bytes);
+
+			String value = new String(bytes, "UTF-8");
+			strings.add(value);
+
+			return value;
+
+		}
+
+		int index = reference - RecordWriter.FIRST_INDEX;
+
+		if (index >= strings.size()) {
+			throw new IOException("Corrupt data record file.");
+		}
+
+		return strings.get(index);
+
+	}
+
+	private int readNumber() throws IOException {
+
+		int value = 0;
+
+		for (int shift = 0; shift < 32; shift += 7) {
+
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+
+		}
+
+		throw new IOException("Corrupt data record file.");
+
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.nextlabs.hb.helper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes data records in the compact snapshot format, which replaces Java
+ * serialization of List<HashMap<String, String>> for the data files.
+ *
+ * The stream starts with MAGIC and VERSION, followed by records, each being
+ * RECORD, the number of fields and the field names and values, and ends with
+ * END. Numbers are variable length. A string is written once, as NEW_STRING,
+ * its UTF-8 length and bytes, and is afterwards referred to by its index in
+ * the string table plus FIRST_INDEX. NULL_STRING stands for a null value.
+ */
+public class RecordWriter implements Closeable {
+
+	public static final int MAGIC = 0x44484253;
+
+	public static final int VERSION = 1;
+
+	static final int END = 0;
+
+	static final int RECORD = 1;
+
+	static final int NULL_STRING = 0;
+
+	static final int NEW_STRING = 1;
+
+	static final int FIRST_INDEX = 2;
+
+	private final DataOutputStream out;
+
+	private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+	public RecordWriter(OutputStream out) throws IOException {
+
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.out.writeInt(MAGIC);
+		this.out.writeByte(VERSION);
+
+	}
+
+	public void writeRecord(Map<String, String> record) throws IOException {
+
+		out.writeByte(RECORD);
+		writeNumber(record.size());
+
+		for (Map.Entry<String, String> field : record.entrySet()) {
+			writeString(field.getKey());
+			writeString(field.getValue());
+		}
+
+	}
+
+	/**
+	 * Ends the stream and closes it.
+	 */
+	public void close() throws IOException {
+
+		out.writeByte(END);
+		out.close();
+
+	}
+
+	/**
+	 * Writes the given records into the content of a data file.
+	 */
+	public static byte[] toByteArray(List<HashMap<String, String>> records)
+			throws IOException {
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		RecordWriter writer = new RecordWriter(bos);
+
+		for (HashMap<String, String> record : records) {
+			writer.writeRecord(record);
+		}
+
+		writer.close();
+
+		return bos.toByteArray();
+
+	}
+
+	private void writeString(String value) throws IOException {
+
+		if (value == null) {
+			writeNumber(NULL_STRING);
+			return;
+		}
+
+		Integer index = strings.get(value);
+
+		if (index != null) {
+			writeNumber(index.intValue() + FIRST_INDEX);
+			return;
+		}
+
+		strings.put(value, Integer.valueOf(strings.size()));
+
+		byte[] bytes = value.getBytes("UTF-8");
+
+		writeNumber(NEW_STRING);
+		writeNumber(bytes.length);
+		out.write(bytes);
+
+	}
+
+	private void writeNumber(int value) throws IOException {
+
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.writeByte(value);
+
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.nextlabs.hb.helper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Makes sure that at most one task per key is queued or running at a time.
+ * Submitting a task for a key which already has one in flight does not start
+ * another, the caller gets the task already in flight and can wait for its
+ * result instead.
+ */
+public class SingleFlight<K, V> {
+
+	private static final Log LOG = LogFactory.getLog(SingleFlight.class);
+
+	private final ConcurrentMap<K, Future<V>> inFlight = new ConcurrentHashMap<K, Future<V>>();
+
+	private final AtomicLong started = new AtomicLong();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	public Future<V> submit(final K key, final Callable<V> call,
+			final Executor executor) {
+
+		final FutureTask<V> task = new FutureTask<V>(call) {
+
+			@Override
+			protected void done() {
+				inFlight.remove(key, this);
+			}
+		};
+
+		final Future<V> existing = inFlight.putIfAbsent(key, task);
+
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			LOG.debug("Task " + key + " already in flight.");
+			return existing;
+		}
+
+		started.incrementAndGet();
+
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(key, task);
+			throw e;
+		}
+
+		return task;
+
+	}
+
+	public Future<V> getInFlight(K key) {
+		return inFlight.get(key);
+	}
+
+	public long getStarted() {
+		return started.get();
+	}
+
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.nextlabs.hb.helper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last few snapshots of a data set by generation, so that the
+ * changes between the generation a Policy Controller holds and the current
+ * generation can be computed.
+ */
+public class SnapshotHistory<T> {
+
+	private final Map<Long, T> snapshots;
+
+	public SnapshotHistory(final int capacity) {
+
+		snapshots = new LinkedHashMap<Long, T>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
+				return size() > capacity;
+			}
+		};
+
+	}
+
+	public synchronized void put(long generation, T snapshot) {
+		snapshots.put(Long.valueOf(generation), snapshot);
+	}
+
+	public synchronized T get(long generation) {
+		return snapshots.get(Long.valueOf(generation));
+	}
+
+}
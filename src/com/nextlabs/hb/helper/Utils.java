@@ -1,17 +1,21 @@
 package com.nextlabs.hb.helper;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.util.Enumeration;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.logging.Log;
@@ -23,12 +27,27 @@ public class Utils {
 
 	public static void compressFiles(List<String> entries, String zipFile) {
 
-		byte[] buffer = new byte[1024];
-
 		try {
 
 			FileOutputStream fos = new FileOutputStream(zipFile);
-			ZipOutputStream zos = new ZipOutputStream(fos);
+			writeZip(entries, fos);
+
+		} catch (IOException e) {
+
+			LOG.error("Utils compressFiles() error: ", e);
+
+		}
+
+	}
+
+	private static void writeZip(List<String> entries, OutputStream out)
+			throws IOException {
+
+		byte[] buffer = new byte[8192];
+
+		ZipOutputStream zos = new ZipOutputStream(out);
+
+		try {
 
 			for (String zipEntry : entries) {
 
@@ -38,115 +57,246 @@ public class Utils {
 				FileInputStream in = new FileInputStream(f);
 				int len;
 
-				while ((len = in.read(buffer)) > 0) {
+				try {
+
+					while ((len = in.read(buffer)) > 0) {
+
+						zos.write(buffer, 0, len);
 
-					zos.write(buffer, 0, len);
+					}
+
+				} finally {
+
+					in.close();
 
 				}
 
-				in.close();
 				zos.closeEntry();
 
 			}
 
+		} finally {
+
 			zos.close();
 
+		}
+
+	}
+
+	public static byte[] readFile(String path) {
+
+		File file = new File(path);
+
+		if (!file.exists()) {
+			return null;
+		}
+
+		try {
+
+			byte[] bytes = new byte[(int) file.length()];
+			FileInputStream in = new FileInputStream(file);
+
+			try {
+
+				int offset = 0;
+				int numRead = 0;
+
+				while (offset < bytes.length
+						&& (numRead = in.read(bytes, offset, bytes.length
+								- offset)) >= 0) {
+					offset += numRead;
+				}
+
+			} finally {
+				in.close();
+			}
+
+			return bytes;
+
 		} catch (IOException e) {
 
-			LOG.error("Utils compressFiles() error: ", e);
+			LOG.error(" Utils readFile() error: ", e);
+			return null;
 
 		}
 
 	}
 
-	public static void uncompressFiles(String extractTo, File zipFile) {
+	public static void writeFile(String path, byte[] bytes) {
 
 		try {
 
-			ZipFile zip = new ZipFile(zipFile);
+			FileOutputStream out = new FileOutputStream(path);
+
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+
+		} catch (IOException e) {
+
+			LOG.error(" Utils writeFile() error: ", e);
+
+		}
+
+	}
 
-			Enumeration<ZipEntry> entries = (Enumeration<ZipEntry>) zip
-					.entries();
+	/**
+	 * Reads a Java serialized object from the stream, leaving the stream
+	 * open, so that an entry of a zip stream can be read in place.
+	 *
+	 * @return the object, or null if it can not be read.
+	 */
+	public static Object readData(InputStream in) {
 
-			while (entries.hasMoreElements()) {
+		Object obj = null;
 
-				ZipEntry entry = entries.nextElement();
+		try {
 
-				File file = new File(extractTo, entry.getName());
+			ObjectInputStream ois = new ObjectInputStream(in);
 
-				LOG.info("Extracting " + entry.getName());
+			obj = ois.readObject();
 
-				InputStream in = zip.getInputStream(entry);
+		} catch (IOException e) {
 
-				BufferedOutputStream out = new BufferedOutputStream(
+			LOG.error(" Utils readData() error: ", e);
 
-				new FileOutputStream(file));
+			obj = null;
 
-				byte[] buffer = new byte[8192];
+		} catch (ClassNotFoundException e) {
 
-				int read;
+			LOG.error(" Utils readData() error: ", e);
 
-				while (-1 != (read = in.read(buffer))) {
+			obj = null;
 
-					out.write(buffer, 0, read);
+		}
 
-				}
+		return obj;
 
-				in.close();
+	}
 
-				out.close();
+	/**
+	 * Converts the content of a data file in the compact format into the
+	 * Java serialized list of records read by older Policy Controllers.
+	 *
+	 * @return the serialized records, or null if they can not be converted.
+	 */
+	public static byte[] toSerializedData(byte[] compactData) {
+
+		try {
+
+			RecordReader reader = new RecordReader(new ByteArrayInputStream(
+					compactData));
 
+			List<HashMap<String, String>> records = new ArrayList<HashMap<String, String>>();
+			HashMap<String, String> record;
+
+			while ((record = reader.readRecord()) != null) {
+				records.add(record);
 			}
 
-			zipFile.delete();
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(buffer);
 
-		} catch (ZipException e) {
+			try {
+				out.writeObject(records);
+			} finally {
+				out.close();
+			}
 
-			LOG.error("Exception in uncompressing the file:", e);
+			return buffer.toByteArray();
 
 		} catch (IOException e) {
 
-			LOG.error("Exception in uncompressing the file:", e);
+			LOG.error(" Utils toSerializedData() error: ", e);
+			return null;
 
 		}
 
 	}
 
-	public static Object readData(String path) {
+	/**
+	 * @return the SHA-256 of the given bytes in hex, or null if the digest is
+	 *         not available.
+	 */
+	public static String sha256(byte[] bytes) {
 
-		File file = new File(path);
-
-		Object obj = null;
+		if (bytes == null) {
+			return null;
+		}
 
 		try {
 
-			if (file.exists()) {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+
+		} catch (NoSuchAlgorithmException e) {
+
+			LOG.error(" Utils sha256() error: ", e);
+			return null;
+
+		}
+
+	}
+
+	/**
+	 * Computes the SHA-256 of a file without reading it into memory.
+	 *
+	 * @return the SHA-256 of the content of the file in hex, or null if the
+	 *         file can not be read or the digest is not available.
+	 */
+	public static String sha256(File file) {
 
-				FileInputStream fin = new FileInputStream(path);
+		InputStream in = null;
 
-				ObjectInputStream ois = new ObjectInputStream(fin);
+		try {
 
-				obj = ois.readObject();
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			in = new FileInputStream(file);
 
-				ois.close();
+			byte[] buffer = new byte[65536];
+			int length;
 
+			while ((length = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, length);
 			}
 
+			return toHex(digest.digest());
+
 		} catch (IOException e) {
 
-			LOG.error(" Utils readData() error: ", e);
+			LOG.error(" Utils sha256() error: ", e);
+			return null;
 
-			obj = null;
+		} catch (NoSuchAlgorithmException e) {
 
-		} catch (ClassNotFoundException e) {
+			LOG.error(" Utils sha256() error: ", e);
+			return null;
 
-			LOG.error(" Utils readData() error: ", e);
+		} finally {
 
-			obj = null;
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOG.error(" Utils sha256() error: ", e);
+				}
+			}
 
 		}
 
-		return obj;
+	}
+
+	private static String toHex(byte[] digest) {
+
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return hex.toString();
 
 	}
 
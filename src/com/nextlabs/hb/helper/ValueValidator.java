@@ -0,0 +1,176 @@
+package com.nextlabs.hb.helper;
+
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Validates license, LOA and ECCN values with rules read once from the
+ * plugin properties. A value is valid if it is not empty and, after
+ * trimming, is at most <name>_length characters long and, when configured,
+ * consists only of the characters in <name>_characters and matches the
+ * regular expression <name>_pattern.
+ *
+ * <name>_characters lists the allowed characters, with ranges written as
+ * "a-z". Only ASCII characters can be allowed this way.
+ *
+ * Instances are immutable and can be shared between threads.
+ */
+public final class ValueValidator {
+
+	private static final Log LOG = LogFactory.getLog(ValueValidator.class);
+
+	private final int maxLength;
+
+	private final boolean[] allowed;
+
+	private final Pattern pattern;
+
+	private ValueValidator(int maxLength, boolean[] allowed, Pattern pattern) {
+		this.maxLength = maxLength;
+		this.allowed = allowed;
+		this.pattern = pattern;
+	}
+
+	/**
+	 * Reads the rules for the values of the given name.
+	 *
+	 * @param props
+	 *            plugin properties.
+	 * @param name
+	 *            name of the values, as the prefix of the properties.
+	 * @param defaultLength
+	 *            maximum length if <name>_length is not set or invalid.
+	 */
+	public static ValueValidator load(Properties props, String name,
+			int defaultLength) {
+
+		String propertyName = name + "_length";
+		int maxLength = defaultLength;
+
+		try {
+			String propertyString = props.getProperty(propertyName);
+			if (propertyString != null && !propertyString.isEmpty()) {
+				maxLength = Integer.parseInt(propertyString.trim());
+			}
+		} catch (Exception e) {
+			LOG.error("Error getting " + propertyName
+					+ " from properties file. Using default value of "
+					+ String.valueOf(defaultLength) + ".");
+			maxLength = defaultLength;
+		}
+
+		boolean[] allowed = null;
+		String characters = props.getProperty(name + "_characters");
+
+		if (characters != null && !characters.trim().isEmpty()) {
+			allowed = parseCharacters(characters.trim());
+		}
+
+		Pattern pattern = null;
+		String regex = props.getProperty(name + "_pattern");
+
+		if (regex != null && !regex.trim().isEmpty()) {
+
+			try {
+				pattern = Pattern.compile(regex.trim());
+			} catch (PatternSyntaxException e) {
+				LOG.error("Invalid " + name + "_pattern : " + regex
+						+ ". Not checking the pattern.", e);
+			}
+
+		}
+
+		return new ValueValidator(maxLength, allowed, pattern);
+
+	}
+
+	private static boolean[] parseCharacters(String characters) {
+
+		boolean[] allowed = new boolean[128];
+		int length = characters.length();
+
+		for (int i = 0; i < length; i++) {
+
+			char first = characters.charAt(i);
+			char last = first;
+
+			if (i + 2 < length && characters.charAt(i + 1) == '-') {
+				last = characters.charAt(i + 2);
+				i += 2;
+			}
+
+			for (int c = first; c <= last && c < allowed.length; c++) {
+				allowed[c] = true;
+			}
+
+		}
+
+		return allowed;
+
+	}
+
+	/**
+	 * @return true if the value is valid.
+	 */
+	public boolean isValid(String value) {
+
+		if (value == null) {
+			return false;
+		}
+
+		/*
+		 * Trim by index, so that nothing is allocated unless a pattern is
+		 * configured.
+		 */
+		int start = 0;
+		int end = value.length();
+
+		while (start < end && value.charAt(start) <= ' ') {
+			start++;
+		}
+
+		while (end > start && value.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		if (end == start && value.isEmpty()) {
+			return false;
+		}
+
+		if (end - start > maxLength) {
+			return false;
+		}
+
+		if (allowed != null) {
+
+			for (int i = start; i < end; i++) {
+
+				char c = value.charAt(i);
+
+				if (c >= allowed.length || !allowed[c]) {
+					return false;
+				}
+
+			}
+
+		}
+
+		if (pattern != null) {
+
+			Matcher matcher = pattern.matcher(value);
+			matcher.region(start, end);
+
+			return matcher.matches();
+
+		}
+
+		return true;
+
+	}
+
+}